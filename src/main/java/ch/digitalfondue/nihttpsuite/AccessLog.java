@@ -0,0 +1,342 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.EndpointDetails;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http.protocol.HttpCoreContext;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access and error log written by a background thread, one json object by line.
+ *
+ * The request threads fill preallocated records of a bounded ring buffer: a slot is claimed with a compare and set
+ * on the tail, then published by its sequence number, like a bounded multi producer queue. A record keeps the
+ * references to the request values (method, target, remote address, exception), the formatting and the writes are
+ * done by the writer thread, in batches. When the ring buffer is full the record is dropped and counted: a request
+ * never waits for the log.
+ */
+final class AccessLog {
+
+    static final int DEFAULT_CAPACITY = 8192;
+    private static final int BATCH_SIZE = 256;
+    private static final long IDLE_PARK_NANOS = 10_000_000L;
+
+    private static final int ACCESS = 0;
+    private static final int ERROR = 1;
+
+    private final boolean accessEnabled;
+    private final Path file;
+    private final Record[] records;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    // writer thread only
+    private long head;
+    private long reportedDropped;
+    private OutputStream out;
+
+    private volatile boolean running;
+    private Thread writer;
+
+    /**
+     * @param file     file to append to, or null
+     * @param out      output stream used when file is null, null to only log the errors to System.err
+     * @param capacity number of records of the ring buffer, rounded up to a power of two
+     */
+    AccessLog(Path file, OutputStream out, int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.accessEnabled = file != null || out != null;
+        this.file = file;
+        this.out = file != null ? null : out != null ? out : System.err;
+        int size = Integer.highestOneBit(capacity * 2 - 1);
+        this.records = new Record[size];
+        this.mask = size - 1;
+        for (int i = 0; i < size; i++) {
+            records[i] = new Record(i);
+        }
+    }
+
+    boolean accessEnabled() {
+        return accessEnabled;
+    }
+
+    long dropped() {
+        return dropped.sum();
+    }
+
+    void access(ClassicHttpRequest request, ClassicHttpResponse response, HttpContext context, long durationNanos) {
+        Record record = claim();
+        if (record == null) {
+            return;
+        }
+        HttpEntity entity = response.getEntity();
+        record.type = ACCESS;
+        record.timeMillis = System.currentTimeMillis();
+        record.remote = remoteAddress(context);
+        record.method = request.getMethod();
+        record.target = request.getPath();
+        record.status = response.getCode();
+        record.bytes = entity == null ? 0 : entity.getContentLength();
+        record.durationNanos = durationNanos;
+        record.publish();
+    }
+
+    /**
+     * @param request the request being handled, or null for a connection error
+     * @param error   the exception
+     */
+    void error(ClassicHttpRequest request, Throwable error) {
+        Record record = claim();
+        if (record == null) {
+            return;
+        }
+        record.type = ERROR;
+        record.timeMillis = System.currentTimeMillis();
+        record.method = request == null ? null : request.getMethod();
+        record.target = request == null ? null : request.getPath();
+        record.error = error;
+        record.publish();
+    }
+
+    private Record claim() {
+        long position = tail.get();
+        while (true) {
+            Record record = records[(int) position & mask];
+            long diff = record.sequence - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    return record;
+                }
+                position = tail.get();
+            } else if (diff < 0) {
+                // the writer did not yet free the slot of the previous round
+                dropped.increment();
+                return null;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    private static InetAddress remoteAddress(HttpContext context) {
+        Object endpoint = context.getAttribute(HttpCoreContext.CONNECTION_ENDPOINT);
+        if (endpoint instanceof EndpointDetails) {
+            SocketAddress remote = ((EndpointDetails) endpoint).getRemoteAddress();
+            if (remote instanceof InetSocketAddress) {
+                return ((InetSocketAddress) remote).getAddress();
+            }
+        }
+        return null;
+    }
+
+    synchronized void start() throws IOException {
+        if (running) {
+            return;
+        }
+        if (file != null) {
+            out = Files.newOutputStream(file, StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.WRITE);
+        }
+        running = true;
+        writer = new Thread(this::run, "ni-http-log");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stop the writer thread, after writing the pending records.
+     */
+    synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(5000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (file != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                e.printStackTrace(System.err);
+            }
+        }
+    }
+
+    private void run() {
+        StringBuilder batch = new StringBuilder(BATCH_SIZE * 128);
+        while (true) {
+            // read before draining: the records published before stop() are written
+            boolean stopping = !running;
+            int count = drain(batch);
+            if (batch.length() > 0) {
+                write(batch);
+            }
+            if (count == 0) {
+                if (stopping) {
+                    return;
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    private int drain(StringBuilder batch) {
+        int count = 0;
+        while (count < BATCH_SIZE) {
+            Record record = records[(int) head & mask];
+            if (record.sequence != head + 1) {
+                break;
+            }
+            format(record, batch);
+            record.clear();
+            // free for the next round
+            record.sequence = head + records.length;
+            head++;
+            count++;
+        }
+        long droppedNow = dropped.sum();
+        if (droppedNow != reportedDropped) {
+            batch.append("{\"time\":\"").append(Instant.ofEpochMilli(System.currentTimeMillis())).append("\",\"type\":\"dropped\",\"count\":")
+                    .append(droppedNow - reportedDropped).append("}\n");
+            reportedDropped = droppedNow;
+        }
+        return count;
+    }
+
+    private void write(StringBuilder batch) {
+        try {
+            out.write(batch.toString().getBytes(StandardCharsets.UTF_8));
+            out.flush();
+        } catch (IOException e) {
+            e.printStackTrace(System.err);
+        }
+        batch.setLength(0);
+    }
+
+    private static void format(Record record, StringBuilder sb) {
+        sb.append("{\"time\":\"").append(Instant.ofEpochMilli(record.timeMillis)).append('"');
+        if (record.type == ACCESS) {
+            sb.append(",\"type\":\"access\"");
+            if (record.remote != null) {
+                sb.append(",\"remote\":\"").append(record.remote.getHostAddress()).append('"');
+            }
+            appendString(sb, "method", record.method);
+            appendString(sb, "target", record.target);
+            sb.append(",\"status\":").append(record.status);
+            if (record.bytes >= 0) {
+                sb.append(",\"bytes\":").append(record.bytes);
+            }
+            sb.append(",\"duration_us\":").append(record.durationNanos / 1000);
+        } else {
+            sb.append(",\"type\":\"error\"");
+            appendString(sb, "method", record.method);
+            appendString(sb, "target", record.target);
+            appendString(sb, "error", record.error.toString());
+            StringWriter stack = new StringWriter();
+            record.error.printStackTrace(new PrintWriter(stack));
+            appendString(sb, "stack", stack.toString());
+        }
+        sb.append("}\n");
+    }
+
+    private static void appendString(StringBuilder sb, String name, String value) {
+        if (value == null) {
+            return;
+        }
+        sb.append(",\"").append(name).append("\":\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+            }
+        }
+        sb.append('"');
+    }
+
+    private static final class Record {
+        // position + 1 when published, position + capacity when free for the next round
+        private volatile long sequence;
+        private int type;
+        private long timeMillis;
+        private InetAddress remote;
+        private String method;
+        private String target;
+        private int status;
+        private long bytes;
+        private long durationNanos;
+        private Throwable error;
+
+        private Record(long sequence) {
+            this.sequence = sequence;
+        }
+
+        // only the thread that claimed the record writes it
+        private void publish() {
+            sequence = sequence + 1;
+        }
+
+        private void clear() {
+            remote = null;
+            method = null;
+            target = null;
+            error = null;
+        }
+    }
+}
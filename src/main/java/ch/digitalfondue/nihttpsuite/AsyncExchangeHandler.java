@@ -0,0 +1,237 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import org.apache.hc.core5.http.*;
+import org.apache.hc.core5.http.io.HttpRequestHandler;
+import org.apache.hc.core5.http.io.entity.InputStreamEntity;
+import org.apache.hc.core5.http.message.BasicClassicHttpRequest;
+import org.apache.hc.core5.http.message.BasicClassicHttpResponse;
+import org.apache.hc.core5.http.nio.AsyncServerExchangeHandler;
+import org.apache.hc.core5.http.nio.CapacityChannel;
+import org.apache.hc.core5.http.nio.DataStreamChannel;
+import org.apache.hc.core5.http.nio.ResponseChannel;
+import org.apache.hc.core5.http.nio.support.classic.ContentInputStream;
+import org.apache.hc.core5.http.nio.support.classic.ContentOutputStream;
+import org.apache.hc.core5.http.nio.support.classic.SharedInputBuffer;
+import org.apache.hc.core5.http.nio.support.classic.SharedOutputBuffer;
+import org.apache.hc.core5.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+
+/**
+ * Bridge between the non blocking I/O reactor and the blocking {@link HttpRequestHandler} dispatcher.
+ *
+ * The reactor threads only move bytes from/to the shared buffers, the dispatcher and the response entity
+ * writing are run in the worker executor. An idle keep alive connection does not hold any worker thread.
+ */
+final class AsyncExchangeHandler implements AsyncServerExchangeHandler {
+
+    private final HttpRequestHandler dispatcher;
+    private final Executor executor;
+    private final int bufferSize;
+    private final Consumer<Exception> exceptionHandler;
+
+    private volatile SharedInputBuffer inputBuffer;
+    private volatile SharedOutputBuffer outputBuffer;
+    // streamed response: produced directly, without holding a worker thread
+    private volatile PushEntity pushEntity;
+    // written response: the pooled buffers are handed to the connection as they are
+    private volatile ResponseWriter.Body writerBody;
+    // prebuilt response: the shared body is written without copy
+    private volatile ByteBuffer prebuiltContent;
+
+    AsyncExchangeHandler(HttpRequestHandler dispatcher, Executor executor, int bufferSize, Consumer<Exception> exceptionHandler) {
+        this.dispatcher = dispatcher;
+        this.executor = executor;
+        this.bufferSize = bufferSize;
+        this.exceptionHandler = exceptionHandler;
+    }
+
+    @Override
+    public void handleRequest(HttpRequest request, EntityDetails entityDetails, ResponseChannel responseChannel, HttpContext context) {
+        ClassicHttpRequest classicRequest = new BasicClassicHttpRequest(request.getMethod(), request.getPath());
+        classicRequest.setScheme(request.getScheme());
+        classicRequest.setAuthority(request.getAuthority());
+        classicRequest.setVersion(request.getVersion());
+        classicRequest.setHeaders(request.getHeaders());
+        InputStream requestStream = null;
+        if (entityDetails != null) {
+            inputBuffer = new SharedInputBuffer(bufferSize);
+            requestStream = new ContentInputStream(inputBuffer);
+            String contentType = entityDetails.getContentType();
+            classicRequest.setEntity(new InputStreamEntity(requestStream, entityDetails.getContentLength(), contentType != null ? ContentType.parse(contentType) : null, entityDetails.getContentEncoding()));
+        }
+        InputStream finalRequestStream = requestStream;
+        executor.execute(() -> {
+            try {
+                ClassicHttpResponse response = new BasicClassicHttpResponse(HttpStatus.SC_OK);
+                dispatcher.handle(classicRequest, response, context);
+                Header connection = response.getFirstHeader(HttpHeaders.CONNECTION);
+                boolean closeConnection = connection != null && HeaderElements.CLOSE.equalsIgnoreCase(connection.getValue());
+                if (connection != null && context.getProtocolVersion().greaterEquals(HttpVersion.HTTP_2)) {
+                    // connection specific headers are not allowed in HTTP/2, only the stream is abandoned
+                    response.removeHeaders(HttpHeaders.CONNECTION);
+                }
+                HttpEntity entity = response.getEntity();
+                if (entity == null) {
+                    responseChannel.sendResponse(response, null, context);
+                } else if (entity instanceof PushEntity) {
+                    pushEntity = (PushEntity) entity;
+                    responseChannel.sendResponse(response, entity, context);
+                } else if (entity instanceof PrebuiltResponse.Entity) {
+                    prebuiltContent = ((PrebuiltResponse.Entity) entity).content();
+                    responseChannel.sendResponse(response, entity, context);
+                } else if (entity instanceof ResponseWriter.Body) {
+                    writerBody = (ResponseWriter.Body) entity;
+                    responseChannel.sendResponse(response, entity, context);
+                } else {
+                    outputBuffer = new SharedOutputBuffer(bufferSize);
+                    responseChannel.sendResponse(response, entity, context);
+                    // for HEAD the stream is already ended by the protocol handler
+                    if (!Method.HEAD.isSame(request.getMethod())) {
+                        try (OutputStream out = new ContentOutputStream(outputBuffer)) {
+                            entity.writeTo(out);
+                        }
+                    }
+                }
+                if (finalRequestStream != null) {
+                    if (closeConnection) {
+                        // the connection (or HTTP/2 stream) will be closed, no need to read the remaining body
+                        inputBuffer.abort();
+                    } else {
+                        finalRequestStream.close();
+                    }
+                }
+            } catch (Exception e) {
+                abortBuffers();
+                exceptionHandler.accept(e);
+            }
+        });
+    }
+
+    @Override
+    public void updateCapacity(CapacityChannel capacityChannel) throws IOException {
+        SharedInputBuffer buffer = inputBuffer;
+        if (buffer != null) {
+            buffer.updateCapacity(capacityChannel);
+        }
+    }
+
+    @Override
+    public void consume(ByteBuffer src) {
+        inputBuffer.fill(src);
+    }
+
+    @Override
+    public void streamEnd(List<? extends Header> trailers) {
+        inputBuffer.markEndStream();
+    }
+
+    @Override
+    public int available() {
+        PushEntity push = pushEntity;
+        if (push != null) {
+            return push.available();
+        }
+        ResponseWriter.Body written = writerBody;
+        if (written != null) {
+            return written.available();
+        }
+        ByteBuffer prebuilt = prebuiltContent;
+        if (prebuilt != null) {
+            // at least 1 to get a last produce call ending the stream
+            return Math.max(1, prebuilt.remaining());
+        }
+        SharedOutputBuffer buffer = outputBuffer;
+        return buffer == null ? 0 : buffer.length();
+    }
+
+    @Override
+    public void produce(DataStreamChannel channel) throws IOException {
+        PushEntity push = pushEntity;
+        if (push != null) {
+            push.produce(channel);
+            return;
+        }
+        ResponseWriter.Body written = writerBody;
+        if (written != null) {
+            written.produce(channel);
+            return;
+        }
+        if (prebuiltContent != null) {
+            producePrebuilt(channel);
+            return;
+        }
+        SharedOutputBuffer buffer = outputBuffer;
+        if (buffer != null) {
+            buffer.flush(channel);
+        }
+    }
+
+    // called by the worker thread sending the response and by the I/O reactor: the stream must be ended only once,
+    // a second endStream would end the next response of the connection
+    private synchronized void producePrebuilt(DataStreamChannel channel) throws IOException {
+        ByteBuffer prebuilt = prebuiltContent;
+        if (prebuilt == null) {
+            return;
+        }
+        if (prebuilt.hasRemaining()) {
+            channel.write(prebuilt);
+        }
+        if (!prebuilt.hasRemaining()) {
+            prebuiltContent = null;
+            channel.endStream();
+        }
+    }
+
+    @Override
+    public void failed(Exception cause) {
+        abortBuffers();
+        exceptionHandler.accept(cause);
+    }
+
+    @Override
+    public void releaseResources() {
+        abortBuffers();
+    }
+
+    private void abortBuffers() {
+        SharedInputBuffer input = inputBuffer;
+        if (input != null) {
+            input.abort();
+        }
+        SharedOutputBuffer output = outputBuffer;
+        if (output != null) {
+            output.abort();
+        }
+        PushEntity push = pushEntity;
+        if (push != null) {
+            // the client disconnected, or the stream is done: in that case abort does nothing
+            push.abort();
+        }
+        ResponseWriter.Body written = writerBody;
+        if (written != null) {
+            written.close();
+        }
+    }
+}
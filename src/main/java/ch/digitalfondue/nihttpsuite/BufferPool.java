@@ -0,0 +1,132 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded pool of direct buffers, spread over independently locked stripes selected by the acquiring thread.
+ *
+ * A buffer is returned to the stripe it was taken from, even when released by another thread (the I/O reactor in
+ * async mode): the stripes stay balanced. An empty stripe allocates a new buffer (a miss); a buffer released to a
+ * full stripe is dropped (an overflow) and left to the garbage collector.
+ */
+final class BufferPool {
+
+    static final int BUFFER_SIZE = 8 * 1024;
+    private static final int BUFFERS_BY_STRIPE = 32;
+
+    /**
+     * Shared by all the servers: at most 256KB by stripe, one stripe by processor.
+     */
+    static final BufferPool RESPONSE = new BufferPool(BUFFER_SIZE, Runtime.getRuntime().availableProcessors(), BUFFERS_BY_STRIPE);
+
+    private final int bufferSize;
+    private final Stripe[] stripes;
+    private final int mask;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+
+    BufferPool(int bufferSize, int stripes, int buffersByStripe) {
+        this.bufferSize = bufferSize;
+        int count = Integer.highestOneBit(Math.max(1, stripes) * 2 - 1);
+        this.stripes = new Stripe[count];
+        this.mask = count - 1;
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new Stripe(buffersByStripe);
+        }
+    }
+
+    /**
+     * Stripe of the current thread, to be given to {@link #acquire(int)} and {@link #release(int, ByteBuffer)}.
+     */
+    int stripe() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id * 0x9E3779B97F4A7C15L) >>> 32) & mask;
+    }
+
+    /**
+     * @return a cleared buffer, pooled or new
+     */
+    ByteBuffer acquire(int stripe) {
+        ByteBuffer buffer = stripes[stripe].poll();
+        if (buffer != null) {
+            hits.increment();
+            return buffer;
+        }
+        misses.increment();
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    void release(int stripe, ByteBuffer buffer) {
+        buffer.clear();
+        if (!stripes[stripe].offer(buffer)) {
+            overflows.increment();
+        }
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    long overflows() {
+        return overflows.sum();
+    }
+
+    int pooled() {
+        int pooled = 0;
+        for (Stripe stripe : stripes) {
+            pooled += stripe.size();
+        }
+        return pooled;
+    }
+
+    private static final class Stripe {
+        private final ByteBuffer[] buffers;
+        private int size;
+
+        private Stripe(int capacity) {
+            this.buffers = new ByteBuffer[capacity];
+        }
+
+        synchronized ByteBuffer poll() {
+            if (size == 0) {
+                return null;
+            }
+            ByteBuffer buffer = buffers[--size];
+            buffers[size] = null;
+            return buffer;
+        }
+
+        synchronized boolean offer(ByteBuffer buffer) {
+            if (size == buffers.length) {
+                return false;
+            }
+            buffers[size++] = buffer;
+            return true;
+        }
+
+        synchronized int size() {
+            return size;
+        }
+    }
+}
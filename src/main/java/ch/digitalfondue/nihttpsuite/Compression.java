@@ -0,0 +1,315 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import org.apache.hc.core5.http.*;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.http.io.entity.FileEntity;
+import org.apache.hc.core5.http.io.entity.HttpEntityWrapper;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Response compression negotiated from the Accept-Encoding header.
+ *
+ * For file bodies, a ".gz" sibling file is used when present and up to date. Otherwise the compressed
+ * content is kept in a size bounded LRU cache, invalidated when the file size or modification time change.
+ */
+final class Compression {
+
+    static final int DEFAULT_MIN_SIZE = 1024;
+    static final String[] DEFAULT_CONTENT_TYPES = {
+            "text/html", "text/plain", "text/css", "text/csv", "text/javascript", "text/xml",
+            "application/javascript", "application/json", "application/xml", "image/svg+xml"
+    };
+
+    private static final String GZIP = "gzip";
+    private static final String DEFLATE = "deflate";
+
+    private static final long CACHE_MAX_SIZE = 16 * 1024 * 1024;
+    private static final long CACHE_MAX_ENTRY_SIZE = 1024 * 1024;
+
+    private final int minSize;
+    private final Set<String> contentTypes;
+    private final FileCache cache = new FileCache(CACHE_MAX_SIZE);
+
+    Compression(int minSize, String... contentTypes) {
+        this.minSize = minSize;
+        this.contentTypes = new HashSet<>();
+        for (String contentType : contentTypes) {
+            this.contentTypes.add(contentType.toLowerCase(Locale.ROOT));
+        }
+    }
+
+    /**
+     * Compress the response entity if the client accept it.
+     *
+     * @param request  request
+     * @param response response, with the entity already set
+     * @param file     file used as body, if any
+     * @throws IOException if the file cannot be read
+     */
+    void apply(HttpRequest request, ClassicHttpResponse response, Path file) throws IOException {
+        HttpEntity entity = response.getEntity();
+        if (entity == null
+                || entity instanceof PushEntity
+                || entity instanceof PrebuiltResponse.Entity
+                || entity.getContentEncoding() != null
+                || response.containsHeader(HttpHeaders.CONTENT_ENCODING)
+                || response.containsHeader(HttpHeaders.CONTENT_RANGE)
+                || response.getCode() < HttpStatus.SC_OK
+                || response.getCode() == HttpStatus.SC_NO_CONTENT
+                || response.getCode() == HttpStatus.SC_NOT_MODIFIED
+                || !isCompressibleContentType(entity.getContentType())) {
+            return;
+        }
+
+        response.addHeader(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+
+        long length = entity.getContentLength();
+        if (length >= 0 && length < minSize) {
+            return;
+        }
+
+        String encoding = negotiate(request);
+        if (encoding == null) {
+            return;
+        }
+
+        HttpEntity compressed = file != null ? compressedFile(file, entity, encoding) : new CompressingEntity(entity, encoding);
+        response.setEntity(compressed);
+
+        // the representation is not the same byte by byte anymore
+        Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+        if (etag != null && etag.getValue().startsWith("\"")) {
+            response.setHeader(HttpHeaders.ETAG, "W/" + etag.getValue());
+        }
+    }
+
+    private boolean isCompressibleContentType(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+        int idx = contentType.indexOf(';');
+        String mimeType = (idx < 0 ? contentType : contentType.substring(0, idx)).trim().toLowerCase(Locale.ROOT);
+        return contentTypes.contains(mimeType);
+    }
+
+    /**
+     * Select gzip or deflate, gzip preferred, from the Accept-Encoding header.
+     *
+     * @param request request
+     * @return the selected encoding or null
+     */
+    static String negotiate(HttpRequest request) {
+        float gzip = 0;
+        float deflate = 0;
+        float any = 0;
+        boolean gzipSeen = false;
+        boolean deflateSeen = false;
+        Iterator<Header> it = request.headerIterator(HttpHeaders.ACCEPT_ENCODING);
+        while (it.hasNext()) {
+            for (String element : it.next().getValue().split(",")) {
+                String[] parts = element.split(";");
+                String coding = parts[0].trim().toLowerCase(Locale.ROOT);
+                float q = 1;
+                for (int i = 1; i < parts.length; i++) {
+                    String param = parts[i].trim();
+                    if (param.startsWith("q=")) {
+                        try {
+                            q = Float.parseFloat(param.substring(2));
+                        } catch (NumberFormatException e) {
+                            q = 0;
+                        }
+                    }
+                }
+                if (GZIP.equals(coding) || "x-gzip".equals(coding)) {
+                    gzip = Math.max(gzip, q);
+                    gzipSeen = true;
+                } else if (DEFLATE.equals(coding)) {
+                    deflate = q;
+                    deflateSeen = true;
+                } else if ("*".equals(coding)) {
+                    any = q;
+                }
+            }
+        }
+        gzip = gzipSeen ? gzip : any;
+        deflate = deflateSeen ? deflate : any;
+        if (gzip > 0 && gzip >= deflate) {
+            return GZIP;
+        }
+        return deflate > 0 ? DEFLATE : null;
+    }
+
+    private HttpEntity compressedFile(Path file, HttpEntity entity, String encoding) throws IOException {
+        String contentType = entity.getContentType();
+        long size = Files.size(file);
+        long lastModified = Files.getLastModifiedTime(file).toMillis();
+
+        if (GZIP.equals(encoding)) {
+            Path gz = file.resolveSibling(file.getFileName() + ".gz");
+            if (Files.isRegularFile(gz) && Files.getLastModifiedTime(gz).toMillis() >= lastModified) {
+                return new EncodedEntity(new FileEntity(gz.toFile(), contentType != null ? ContentType.parse(contentType) : null), encoding);
+            }
+        }
+
+        if (size > CACHE_MAX_ENTRY_SIZE) {
+            return new CompressingEntity(entity, encoding);
+        }
+
+        String key = encoding + ':' + file.toAbsolutePath();
+        byte[] content = cache.get(key, size, lastModified);
+        if (content == null) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream((int) size / 2);
+            try (OutputStream compressing = compressingStream(out, encoding)) {
+                Files.copy(file, compressing);
+            }
+            content = out.toByteArray();
+            cache.put(key, size, lastModified, content);
+        }
+        return new EncodedEntity(new ByteArrayEntity(content, contentType != null ? ContentType.parse(contentType) : null), encoding);
+    }
+
+    private static DeflaterOutputStream compressingStream(OutputStream out, String encoding) throws IOException {
+        return GZIP.equals(encoding) ? new GzipStream(out) : new DeflateStream(out);
+    }
+
+    /**
+     * Releases the native deflater of a stream that will never be finished, e.g. because writing the body failed.
+     */
+    private static void end(DeflaterOutputStream compressing) {
+        if (compressing instanceof GzipStream) {
+            ((GzipStream) compressing).end();
+        } else {
+            ((DeflateStream) compressing).end();
+        }
+    }
+
+    private static final class GzipStream extends GZIPOutputStream {
+        private GzipStream(OutputStream out) throws IOException {
+            super(out, 8192);
+        }
+
+        private void end() {
+            def.end();
+        }
+    }
+
+    private static final class DeflateStream extends DeflaterOutputStream {
+        private DeflateStream(OutputStream out) {
+            super(out, new Deflater(), 8192);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                def.end();
+            }
+        }
+
+        private void end() {
+            def.end();
+        }
+    }
+
+    /**
+     * Already encoded content.
+     */
+    private static final class EncodedEntity extends HttpEntityWrapper {
+        private final String encoding;
+
+        private EncodedEntity(HttpEntity wrappedEntity, String encoding) {
+            super(wrappedEntity);
+            this.encoding = encoding;
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return encoding;
+        }
+    }
+
+    /**
+     * Compress the wrapped entity while it's written.
+     */
+    private static final class CompressingEntity extends HttpEntityWrapper {
+        private final String encoding;
+
+        private CompressingEntity(HttpEntity wrappedEntity, String encoding) {
+            super(wrappedEntity);
+            this.encoding = encoding;
+        }
+
+        @Override
+        public String getContentEncoding() {
+            return encoding;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public boolean isChunked() {
+            return true;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeTo(out);
+            return new ByteArrayInputStream(out.toByteArray());
+        }
+
+        @Override
+        public void writeTo(OutputStream outStream) throws IOException {
+            // the underlying stream is closed by httpcore once the entity is written
+            DeflaterOutputStream compressing = compressingStream(new FilterOutputStream(outStream) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            }, encoding);
+            boolean written = false;
+            try {
+                super.writeTo(compressing);
+                written = true;
+            } finally {
+                if (written) {
+                    compressing.close();
+                } else {
+                    // finishing would write the trailer to a broken stream: only release the deflater
+                    end(compressing);
+                }
+            }
+        }
+    }
+}
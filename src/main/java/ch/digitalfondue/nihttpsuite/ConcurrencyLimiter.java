@@ -0,0 +1,235 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limit on the number of requests handled at the same time, with a bounded wait queue.
+ *
+ * Acquiring a free slot is a compare and set on the in flight counter, the lock is only taken by the waiting
+ * requests and, when some requests wait, by the releasing ones. A request arriving when the queue is full is
+ * rejected immediately; a queued request is rejected when it waited more than maxQueueTime.
+ *
+ * The adaptive limit follows the latency of the handled requests, like a gradient limiter: the average latency
+ * of each sample window is compared to a long term average. While it stays under 1.5 times the long term one,
+ * the limit grows by its square root (only if the requests in flight reached half of it); when the latency grows
+ * further, the limit shrinks proportionally. The changes are smoothed: at most -10% by window.
+ */
+final class ConcurrencyLimiter {
+
+    private static final long SAMPLE_WINDOW_NANOS = 100_000_000L;
+    private static final int MIN_SAMPLES = 10;
+    private static final int LONG_TERM_WINDOWS = 100;
+    private static final double TOLERANCE = 1.5;
+    private static final double SMOOTHING = 0.2;
+
+    private final boolean adaptive;
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueueSize;
+    private final long maxQueueTimeNanos;
+
+    private volatile int limit;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    // adaptive limit: samples of the current window
+    private final LongAdder sampleNanos = new LongAdder();
+    private final LongAdder sampleCount = new LongAdder();
+    private final AtomicLong nextUpdate = new AtomicLong(System.nanoTime() + SAMPLE_WINDOW_NANOS);
+    // approximate: concurrent updates may lose the max
+    private volatile int peakInFlight;
+    // guarded by this, only updated by the thread ending a window
+    private double longTermNanos;
+    private double estimatedLimit;
+
+    private ConcurrencyLimiter(boolean adaptive, int minLimit, int maxLimit, int maxQueueSize, long maxQueueTimeNanos) {
+        if (minLimit <= 0 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Invalid concurrency limit: min " + minLimit + ", max " + maxLimit);
+        }
+        if (maxQueueSize < 0 || maxQueueTimeNanos < 0) {
+            throw new IllegalArgumentException("maxQueueSize and maxQueueTime must not be negative");
+        }
+        this.adaptive = adaptive;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.maxQueueSize = maxQueueSize;
+        this.maxQueueTimeNanos = maxQueueTimeNanos;
+        this.limit = maxLimit;
+        this.estimatedLimit = maxLimit;
+    }
+
+    static ConcurrencyLimiter fixed(int limit, int maxQueueSize, long maxQueueTimeNanos) {
+        return new ConcurrencyLimiter(false, limit, limit, maxQueueSize, maxQueueTimeNanos);
+    }
+
+    /**
+     * Adaptive limit between minLimit and maxLimit, starting at maxLimit.
+     */
+    static ConcurrencyLimiter adaptive(int minLimit, int maxLimit, int maxQueueSize, long maxQueueTimeNanos) {
+        return new ConcurrencyLimiter(true, minLimit, maxLimit, maxQueueSize, maxQueueTimeNanos);
+    }
+
+    /**
+     * Take a slot, waiting in the queue if needed. A successful call must be followed by {@link #release(long)}.
+     *
+     * @return false if the request must be rejected
+     */
+    boolean acquire() {
+        if (maxQueueSize == 0) {
+            if (tryAcquire()) {
+                return true;
+            }
+            rejected.increment();
+            return false;
+        }
+        // the queued requests go first
+        if (queued.get() == 0 && tryAcquire()) {
+            return true;
+        }
+        if (queued.incrementAndGet() > maxQueueSize) {
+            queued.decrementAndGet();
+            // the queue may be counted as full only for an instant, by a request that then got a free slot
+            if (tryAcquire()) {
+                return true;
+            }
+            rejected.increment();
+            return false;
+        }
+        lock.lock();
+        try {
+            long remaining = maxQueueTimeNanos;
+            while (!tryAcquire()) {
+                if (remaining <= 0) {
+                    rejected.increment();
+                    return false;
+                }
+                remaining = released.awaitNanos(remaining);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rejected.increment();
+            return false;
+        } finally {
+            queued.decrementAndGet();
+            lock.unlock();
+        }
+    }
+
+    private boolean tryAcquire() {
+        int current;
+        do {
+            current = inFlight.get();
+            if (current >= limit) {
+                return false;
+            }
+        } while (!inFlight.compareAndSet(current, current + 1));
+        if (adaptive && current >= peakInFlight) {
+            peakInFlight = current + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Free the slot taken by {@link #acquire()}.
+     *
+     * @param elapsedNanos time spent handling the request
+     */
+    void release(long elapsedNanos) {
+        inFlight.decrementAndGet();
+        if (adaptive) {
+            sample(elapsedNanos);
+        }
+        if (queued.get() > 0) {
+            lock.lock();
+            try {
+                released.signal();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private void sample(long elapsedNanos) {
+        sampleNanos.add(elapsedNanos);
+        sampleCount.increment();
+        long now = System.nanoTime();
+        long next = nextUpdate.get();
+        if (now - next >= 0 && sampleCount.sum() >= MIN_SAMPLES && nextUpdate.compareAndSet(next, now + SAMPLE_WINDOW_NANOS)) {
+            long count = sampleCount.sumThenReset();
+            long nanos = sampleNanos.sumThenReset();
+            int peak = peakInFlight;
+            peakInFlight = inFlight.get();
+            if (count > 0) {
+                update((double) nanos / count, peak);
+            }
+        }
+    }
+
+    private synchronized void update(double shortTermNanos, int peak) {
+        if (longTermNanos == 0) {
+            longTermNanos = shortTermNanos;
+        } else {
+            longTermNanos += (shortTermNanos - longTermNanos) / LONG_TERM_WINDOWS;
+        }
+        // the latency dropped a lot (less work or a recovered dependency): follow it faster
+        if (longTermNanos > 2 * shortTermNanos) {
+            longTermNanos *= 0.95;
+        }
+        double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longTermNanos / shortTermNanos));
+        double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+        // without enough load, there is no evidence that a higher limit would be fine
+        if (newLimit > estimatedLimit && peak < estimatedLimit / 2) {
+            return;
+        }
+        estimatedLimit = Math.max(minLimit, Math.min(maxLimit, estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING));
+        int previous = limit;
+        limit = (int) estimatedLimit;
+        if (limit > previous && queued.get() > 0) {
+            lock.lock();
+            try {
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    int limit() {
+        return limit;
+    }
+
+    int inFlight() {
+        return inFlight.get();
+    }
+
+    int queued() {
+        return queued.get();
+    }
+
+    long rejected() {
+        return rejected.sum();
+    }
+}
@@ -0,0 +1,179 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import org.apache.hc.core5.http.URIScheme;
+import org.apache.hc.core5.http.config.Http1Config;
+import org.apache.hc.core5.http.impl.io.DefaultBHttpServerConnection;
+import org.apache.hc.core5.http.io.HttpConnectionFactory;
+import org.apache.hc.core5.io.CloseMode;
+import org.apache.hc.core5.reactor.IOSession;
+import org.apache.hc.core5.reactor.IOSessionListener;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connection counters, and the max connections limit: the connections over the limit are closed as soon as they
+ * are accepted. The counters are updated by {@link #connectionFactory()} for the classic server and by
+ * {@link #sessionListener()} for the async one.
+ */
+final class ConnectionStats {
+
+    private final int maxConnections;
+    private final AtomicInteger open = new AtomicInteger();
+    private final LongAdder accepted = new LongAdder();
+    private final LongAdder closedIdle = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+
+    /**
+     * @param maxConnections max number of open connections, 0 for no limit
+     */
+    ConnectionStats(int maxConnections) {
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @return false if the connection must be closed, because there are too many open connections
+     */
+    private boolean opened() {
+        int count = open.incrementAndGet();
+        if (maxConnections > 0 && count > maxConnections) {
+            rejected.increment();
+            return false;
+        }
+        accepted.increment();
+        return true;
+    }
+
+    private void closed() {
+        open.decrementAndGet();
+    }
+
+    void idleTimeout() {
+        closedIdle.increment();
+    }
+
+    int open() {
+        return open.get();
+    }
+
+    long accepted() {
+        return accepted.sum();
+    }
+
+    long closedIdle() {
+        return closedIdle.sum();
+    }
+
+    long rejected() {
+        return rejected.sum();
+    }
+
+    HttpConnectionFactory<DefaultBHttpServerConnection> connectionFactory() {
+        return socket -> {
+            CountedConnection connection = new CountedConnection();
+            if (opened()) {
+                connection.bind(socket);
+            } else {
+                // a connection that is not bound is not open: the worker closes it right away
+                closeQuietly(socket);
+            }
+            return connection;
+        };
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    private final class CountedConnection extends DefaultBHttpServerConnection {
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        private CountedConnection() {
+            super(URIScheme.HTTP.id, Http1Config.DEFAULT);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                countClose();
+            }
+        }
+
+        @Override
+        public void close(CloseMode closeMode) {
+            try {
+                super.close(closeMode);
+            } finally {
+                countClose();
+            }
+        }
+
+        private void countClose() {
+            if (closed.compareAndSet(false, true)) {
+                closed();
+            }
+        }
+    }
+
+    IOSessionListener sessionListener() {
+        return new IOSessionListener() {
+            @Override
+            public void connected(IOSession session) {
+                if (!opened()) {
+                    // an immediate close would not be reported to disconnected()
+                    session.close(CloseMode.GRACEFUL);
+                }
+            }
+
+            @Override
+            public void startTls(IOSession session) {
+            }
+
+            @Override
+            public void inputReady(IOSession session) {
+            }
+
+            @Override
+            public void outputReady(IOSession session) {
+            }
+
+            @Override
+            public void timeout(IOSession session) {
+                idleTimeout();
+            }
+
+            @Override
+            public void exception(IOSession session, Exception ex) {
+            }
+
+            @Override
+            public void disconnected(IOSession session) {
+                closed();
+            }
+        };
+    }
+}
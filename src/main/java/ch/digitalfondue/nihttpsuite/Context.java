@@ -15,8 +15,106 @@
  */
 package ch.digitalfondue.nihttpsuite;
 
+import java.util.function.Supplier;
+
 /**
+ * Per request attributes, to share values between the wrappers and the handler of a request, like a parsed token,
+ * a decoded body or a tenant, instead of computing them again.
+ *
+ * The keys are registered on the server builder, see {@link Server.ServerBuilder#attribute(String, Class)} and
+ * {@link Server.ServerBuilder#longAttribute(String)}, usually stored in constants. Each key is an index in an array
+ * of the request: a get or a set does not hash nor box the value, and the arrays are only allocated on the first set.
  *
+ * A context is used by a single request: it is not thread safe.
  */
 public interface Context {
+
+    /**
+     * @param key attribute key
+     * @return the attribute value, null if not set
+     */
+    <T> T get(Key<T> key);
+
+    /**
+     * @param key   attribute key
+     * @param value the value, null to remove it
+     */
+    <T> void set(Key<T> key, T value);
+
+    /**
+     * Get the attribute value, computing and setting it if not set.
+     *
+     * @param key      attribute key
+     * @param supplier supplies the value, if it returns null nothing is set
+     * @return the attribute value
+     */
+    <T> T computeIfAbsent(Key<T> key, Supplier<? extends T> supplier);
+
+    /**
+     * @param key attribute key
+     * @return the attribute value, 0 if not set
+     */
+    long getLong(LongKey key);
+
+    /**
+     * @param key   attribute key
+     * @param value the value
+     */
+    void setLong(LongKey key, long value);
+
+    /**
+     * Key of an object attribute, created by {@link Server.ServerBuilder#attribute(String, Class)}.
+     *
+     * @param <T> value type
+     */
+    final class Key<T> {
+        final ContextAttributes owner;
+        final int index;
+        private final String name;
+        private final Class<T> type;
+
+        Key(ContextAttributes owner, int index, String name, Class<T> type) {
+            this.owner = owner;
+            this.index = index;
+            this.name = name;
+            this.type = type;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        public Class<T> type() {
+            return type;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (" + type.getName() + ")";
+        }
+    }
+
+    /**
+     * Key of a long attribute, stored without boxing, created by {@link Server.ServerBuilder#longAttribute(String)}.
+     */
+    final class LongKey {
+        final ContextAttributes owner;
+        final int index;
+        private final String name;
+
+        LongKey(ContextAttributes owner, int index, String name) {
+            this.owner = owner;
+            this.index = index;
+            this.name = name;
+        }
+
+        public String name() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return name + " (long)";
+        }
+    }
 }
@@ -0,0 +1,122 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * Attribute keys registered for a server, and the per request store of their values: one array slot by key,
+ * allocated on the first set. The registration is closed when the server is built, so that the arrays of the
+ * requests always have a slot for every key.
+ */
+final class ContextAttributes {
+
+    private final Set<String> names = new HashSet<>();
+    private int objects;
+    private int longs;
+    private boolean frozen;
+
+    <T> Context.Key<T> register(String name, Class<T> type) {
+        checkName(name);
+        return new Context.Key<>(this, objects++, name, type);
+    }
+
+    Context.LongKey registerLong(String name) {
+        checkName(name);
+        return new Context.LongKey(this, longs++, name);
+    }
+
+    private void checkName(String name) {
+        if (frozen) {
+            throw new IllegalStateException("The attributes must be registered before building the server");
+        }
+        if (!names.add(name)) {
+            throw new IllegalArgumentException("Attribute " + name + " is already registered");
+        }
+    }
+
+    ContextAttributes freeze() {
+        frozen = true;
+        return this;
+    }
+
+    Context newContext() {
+        return new Store(this);
+    }
+
+    private static final class Store implements Context {
+        private final ContextAttributes attributes;
+        private Object[] objects;
+        private long[] longs;
+
+        private Store(ContextAttributes attributes) {
+            this.attributes = attributes;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public <T> T get(Key<T> key) {
+            check(key.owner, key);
+            return objects == null ? null : (T) objects[key.index];
+        }
+
+        @Override
+        public <T> void set(Key<T> key, T value) {
+            check(key.owner, key);
+            if (objects == null) {
+                if (value == null) {
+                    return;
+                }
+                objects = new Object[attributes.objects];
+            }
+            objects[key.index] = value;
+        }
+
+        @Override
+        public <T> T computeIfAbsent(Key<T> key, Supplier<? extends T> supplier) {
+            T value = get(key);
+            if (value == null) {
+                value = supplier.get();
+                set(key, value);
+            }
+            return value;
+        }
+
+        @Override
+        public long getLong(LongKey key) {
+            check(key.owner, key);
+            return longs == null ? 0 : longs[key.index];
+        }
+
+        @Override
+        public void setLong(LongKey key, long value) {
+            check(key.owner, key);
+            if (longs == null) {
+                longs = new long[attributes.longs];
+            }
+            longs[key.index] = value;
+        }
+
+        // a key of another server would point to a slot of an other attribute
+        private void check(ContextAttributes owner, Object key) {
+            if (owner != attributes) {
+                throw new IllegalArgumentException("Attribute " + key + " is not registered on this server");
+            }
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+/**
+ * Server-Sent Events stream, see {@link Response#eventStream()}.
+ *
+ * <pre>
+ * EventSink sink = res.ok().eventStream();
+ * subscribers.add(sink);
+ * sink.onClose(() -&gt; subscribers.remove(sink));
+ * ...
+ * subscribers.forEach(s -&gt; s.event("price", "42.5").flush());
+ * </pre>
+ */
+public interface EventSink extends ResponseStream {
+
+    /**
+     * Write an unnamed event ("message" in the browser).
+     *
+     * @param data event data, can contain new lines
+     * @return this sink
+     */
+    default EventSink event(String data) {
+        return event(null, null, data);
+    }
+
+    /**
+     * Write a named event.
+     *
+     * @param name event name
+     * @param data event data, can contain new lines
+     * @return this sink
+     */
+    default EventSink event(String name, String data) {
+        return event(null, name, data);
+    }
+
+    /**
+     * Write an event.
+     *
+     * @param id   event id, sent back by the browser in the Last-Event-ID header when reconnecting, can be null
+     * @param name event name, can be null
+     * @param data event data, can contain new lines ("\r\n", "\r" or "\n")
+     * @return this sink
+     * @throws IllegalArgumentException if the id or the name contains a new line
+     */
+    default EventSink event(String id, String name, String data) {
+        requireSingleLine("id", id);
+        requireSingleLine("name", name);
+        StringBuilder sb = new StringBuilder(data.length() + 32);
+        if (id != null) {
+            sb.append("id: ").append(id).append('\n');
+        }
+        if (name != null) {
+            sb.append("event: ").append(name).append('\n');
+        }
+        // a bare '\r' ends a line too: each line becomes its own data field
+        int start = 0;
+        int length = data.length();
+        for (int i = 0; i < length; i++) {
+            char c = data.charAt(i);
+            if (c == '\n' || c == '\r') {
+                sb.append("data: ").append(data, start, i).append('\n');
+                if (c == '\r' && i + 1 < length && data.charAt(i + 1) == '\n') {
+                    i++;
+                }
+                start = i + 1;
+            }
+        }
+        sb.append("data: ").append(data, start, length).append("\n\n");
+        write(sb.toString());
+        return this;
+    }
+
+    /**
+     * Write a comment, ignored by the browser.
+     *
+     * @param comment comment, without new lines
+     * @return this sink
+     * @throws IllegalArgumentException if the comment contains a new line
+     */
+    default EventSink comment(String comment) {
+        requireSingleLine("comment", comment);
+        write(":" + comment + "\n");
+        return this;
+    }
+
+    private static void requireSingleLine(String field, String value) {
+        if (value != null && (value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0)) {
+            throw new IllegalArgumentException("Event " + field + " must not contain new lines");
+        }
+    }
+
+    @Override
+    EventSink write(byte[] chunk);
+
+    @Override
+    default EventSink write(String chunk) {
+        ResponseStream.super.write(chunk);
+        return this;
+    }
+
+    @Override
+    EventSink flush();
+
+    @Override
+    EventSink onClose(Runnable callback);
+}
@@ -0,0 +1,72 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Size bounded LRU cache of file derived content. An entry is valid only while
+ * the file has the same size and modification time as when it was cached.
+ */
+final class FileCache {
+
+    private final long maxSize;
+    private long size;
+    private final LinkedHashMap<String, CachedFile> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    FileCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    synchronized byte[] get(String key, long fileSize, long lastModified) {
+        CachedFile cached = entries.get(key);
+        if (cached == null) {
+            return null;
+        }
+        if (cached.fileSize != fileSize || cached.lastModified != lastModified) {
+            entries.remove(key);
+            size -= cached.content.length;
+            return null;
+        }
+        return cached.content;
+    }
+
+    synchronized void put(String key, long fileSize, long lastModified, byte[] content) {
+        if (content.length > maxSize) {
+            return;
+        }
+        CachedFile previous = entries.put(key, new CachedFile(fileSize, lastModified, content));
+        size += content.length - (previous == null ? 0 : previous.content.length);
+        Iterator<CachedFile> it = entries.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            size -= it.next().content.length;
+            it.remove();
+        }
+    }
+
+    private static final class CachedFile {
+        private final long fileSize;
+        private final long lastModified;
+        private final byte[] content;
+
+        private CachedFile(long fileSize, long lastModified, byte[] content) {
+            this.fileSize = fileSize;
+            this.lastModified = lastModified;
+            this.content = content;
+        }
+    }
+}
@@ -0,0 +1,32 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+/**
+ * Code run around the {@link RequestHandler} of a route, for the cross-cutting concerns like authentication, CORS,
+ * timing or common headers. Registered for every route with {@link Server.ServerBuilder#filter(Filter)}, or for
+ * the last registered route with {@link Server.RouteBuilder#filter(Filter)}.
+ *
+ * A filter continues with next.handle(request, response), or writes the response without calling it to stop
+ * there. The values computed by a filter can be passed to the handler with {@link Request#context()}.
+ *
+ * The chain of each route is composed once, when the server is built: a filter calls the next one directly,
+ * no list is iterated by request.
+ */
+@FunctionalInterface
+public interface Filter {
+    void filter(Request request, Response response, RequestHandler next) throws Exception;
+}
@@ -0,0 +1,118 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock free latency histogram with logarithmic buckets.
+ *
+ * Each power of two is split in 4 sub buckets, so a recorded value is known within 25%. The first bucket hold
+ * the values under 1µs, the last one the values over ~69s. Each bucket is a {@link LongAdder}: recording does not
+ * allocate (once the adder cells exist) and concurrent recordings from different cores do not contend.
+ */
+final class LatencyHistogram {
+
+    private static final int MIN_EXPONENT = 10; // 1024ns
+    private static final int MAX_EXPONENT = 36; // ~68.7s
+    private static final int SUB_BUCKET_BITS = 2;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKETS = (MAX_EXPONENT - MIN_EXPONENT) * SUB_BUCKETS + 2;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder sumNanos = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    void record(long nanos) {
+        buckets[bucket(nanos)].increment();
+        sumNanos.add(nanos);
+    }
+
+    static int bucket(long nanos) {
+        if (nanos < (1L << MIN_EXPONENT)) {
+            return 0;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - MIN_EXPONENT) * SUB_BUCKETS + subBucket + 1;
+    }
+
+    /**
+     * Exclusive upper bound of a bucket, in nanoseconds. {@link Long#MAX_VALUE} for the last bucket.
+     *
+     * @param bucket bucket index
+     * @return upper bound
+     */
+    static long upperBound(int bucket) {
+        if (bucket == 0) {
+            return 1L << MIN_EXPONENT;
+        }
+        if (bucket == BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        int exponent = (bucket - 1) / SUB_BUCKETS + MIN_EXPONENT;
+        int subBucket = (bucket - 1) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * Read the bucket counts. The snapshot is not atomic: it may include part of the concurrent recordings.
+     *
+     * @return counts by bucket
+     */
+    long[] snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return counts;
+    }
+
+    long sumNanos() {
+        return sumNanos.sum();
+    }
+
+    /**
+     * Value at the given quantile, as the upper bound of the bucket containing it.
+     *
+     * @param counts   snapshot
+     * @param total    sum of the counts
+     * @param quantile between 0 and 1
+     * @return latency in nanoseconds, 0 if there is no value
+     */
+    static long quantile(long[] counts, long total, double quantile) {
+        if (total == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return i == BUCKETS - 1 ? upperBound(i - 1) : upperBound(i);
+            }
+        }
+        return upperBound(BUCKETS - 2);
+    }
+}
@@ -0,0 +1,228 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request metrics by route, rendered in the Prometheus text format.
+ *
+ * The metrics of each route are created when the server is built: recording a request only update
+ * {@link LongAdder}s, without lookup nor allocation.
+ */
+final class Metrics {
+
+    private static final String[] STATUS_CLASSES = {"1xx", "2xx", "3xx", "4xx", "5xx"};
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    private final List<RouteMetrics> routes = new ArrayList<>();
+    // requests without a matching route
+    final RouteMetrics notFound = new RouteMetrics("", "404");
+    // server wide concurrency limit, may be null
+    private final ConcurrencyLimiter limiter;
+    private final ConnectionStats connections;
+    private final AccessLog log;
+
+    Metrics(ConcurrencyLimiter limiter, ConnectionStats connections, AccessLog log) {
+        this.limiter = limiter;
+        this.connections = connections;
+        this.log = log;
+    }
+
+    RouteMetrics register(String method, String path) {
+        for (RouteMetrics route : routes) {
+            if (route.method.equals(method) && route.path.equals(path)) {
+                return route;
+            }
+        }
+        RouteMetrics route = new RouteMetrics(method, path);
+        routes.add(route);
+        return route;
+    }
+
+    static final class RouteMetrics {
+        private final String method;
+        private final String path;
+        private final LongAdder inFlight = new LongAdder();
+        private final LongAdder[] statusClasses = new LongAdder[STATUS_CLASSES.length];
+        private final LatencyHistogram latency = new LatencyHistogram();
+
+        private RouteMetrics(String method, String path) {
+            this.method = method;
+            this.path = path;
+            for (int i = 0; i < statusClasses.length; i++) {
+                statusClasses[i] = new LongAdder();
+            }
+        }
+
+        void begin() {
+            inFlight.increment();
+        }
+
+        void end(int statusCode, long elapsedNanos) {
+            inFlight.decrement();
+            record(statusCode, elapsedNanos);
+        }
+
+        void record(int statusCode, long elapsedNanos) {
+            int statusClass = Math.min(Math.max(statusCode / 100 - 1, 0), STATUS_CLASSES.length - 1);
+            statusClasses[statusClass].increment();
+            latency.record(elapsedNanos);
+        }
+    }
+
+    /**
+     * Render all the metrics in the Prometheus text exposition format (version 0.0.4).
+     *
+     * @return metrics
+     */
+    String render() {
+        List<RouteMetrics> all = new ArrayList<>(routes);
+        all.add(notFound);
+        StringBuilder sb = new StringBuilder(4096);
+
+        sb.append("# HELP nihttp_requests_total Number of handled requests by route and status class.\n");
+        sb.append("# TYPE nihttp_requests_total counter\n");
+        for (RouteMetrics route : all) {
+            for (int i = 0; i < STATUS_CLASSES.length; i++) {
+                long count = route.statusClasses[i].sum();
+                if (count > 0) {
+                    sb.append("nihttp_requests_total{");
+                    labels(sb, route).append(",status=\"").append(STATUS_CLASSES[i]).append("\"} ").append(count).append('\n');
+                }
+            }
+        }
+
+        sb.append("# HELP nihttp_requests_in_flight Number of requests being handled by route.\n");
+        sb.append("# TYPE nihttp_requests_in_flight gauge\n");
+        for (RouteMetrics route : routes) {
+            sb.append("nihttp_requests_in_flight{");
+            labels(sb, route).append("} ").append(route.inFlight.sum()).append('\n');
+        }
+
+        sb.append("# HELP nihttp_request_duration_seconds Time spent in the route handler.\n");
+        sb.append("# TYPE nihttp_request_duration_seconds histogram\n");
+        List<long[]> snapshots = new ArrayList<>(all.size());
+        for (RouteMetrics route : all) {
+            long[] counts = route.latency.snapshot();
+            snapshots.add(counts);
+            long cumulative = 0;
+            for (int i = 0; i < LatencyHistogram.BUCKETS - 1; i++) {
+                cumulative += counts[i];
+                // one bucket by power of two is enough for the scrapes, the quantiles below use all of them
+                if ((i & 3) == 0) {
+                    sb.append("nihttp_request_duration_seconds_bucket{");
+                    labels(sb, route).append(",le=\"").append(seconds(LatencyHistogram.upperBound(i))).append("\"} ").append(cumulative).append('\n');
+                }
+            }
+            long total = cumulative + counts[LatencyHistogram.BUCKETS - 1];
+            sb.append("nihttp_request_duration_seconds_bucket{");
+            labels(sb, route).append(",le=\"+Inf\"} ").append(total).append('\n');
+            sb.append("nihttp_request_duration_seconds_sum{");
+            labels(sb, route).append("} ").append(seconds(route.latency.sumNanos())).append('\n');
+            sb.append("nihttp_request_duration_seconds_count{");
+            labels(sb, route).append("} ").append(total).append('\n');
+        }
+
+        sb.append("# HELP nihttp_request_duration_quantile_seconds Estimated quantiles of the time spent in the route handler.\n");
+        sb.append("# TYPE nihttp_request_duration_quantile_seconds gauge\n");
+        for (int r = 0; r < all.size(); r++) {
+            long[] counts = snapshots.get(r);
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+            for (double quantile : QUANTILES) {
+                sb.append("nihttp_request_duration_quantile_seconds{");
+                labels(sb, all.get(r)).append(",quantile=\"").append(quantile).append("\"} ")
+                        .append(seconds(LatencyHistogram.quantile(counts, total, quantile))).append('\n');
+            }
+        }
+
+        sb.append("# HELP nihttp_connections_open Number of open connections.\n");
+        sb.append("# TYPE nihttp_connections_open gauge\n");
+        sb.append("nihttp_connections_open ").append(connections.open()).append('\n');
+        sb.append("# HELP nihttp_connections_accepted_total Number of accepted connections.\n");
+        sb.append("# TYPE nihttp_connections_accepted_total counter\n");
+        sb.append("nihttp_connections_accepted_total ").append(connections.accepted()).append('\n');
+        sb.append("# HELP nihttp_connections_closed_idle_total Number of connections closed by the idle timeout.\n");
+        sb.append("# TYPE nihttp_connections_closed_idle_total counter\n");
+        sb.append("nihttp_connections_closed_idle_total ").append(connections.closedIdle()).append('\n');
+        sb.append("# HELP nihttp_connections_rejected_total Number of connections closed because of the max connections limit.\n");
+        sb.append("# TYPE nihttp_connections_rejected_total counter\n");
+        sb.append("nihttp_connections_rejected_total ").append(connections.rejected()).append('\n');
+
+        BufferPool pool = BufferPool.RESPONSE;
+        sb.append("# HELP nihttp_buffer_pool_hits_total Number of response buffers taken from the pool.\n");
+        sb.append("# TYPE nihttp_buffer_pool_hits_total counter\n");
+        sb.append("nihttp_buffer_pool_hits_total ").append(pool.hits()).append('\n');
+        sb.append("# HELP nihttp_buffer_pool_misses_total Number of response buffers allocated because the pool was empty.\n");
+        sb.append("# TYPE nihttp_buffer_pool_misses_total counter\n");
+        sb.append("nihttp_buffer_pool_misses_total ").append(pool.misses()).append('\n');
+        sb.append("# HELP nihttp_buffer_pool_overflows_total Number of response buffers dropped because the pool was full.\n");
+        sb.append("# TYPE nihttp_buffer_pool_overflows_total counter\n");
+        sb.append("nihttp_buffer_pool_overflows_total ").append(pool.overflows()).append('\n');
+        sb.append("# HELP nihttp_buffer_pool_pooled Number of response buffers available in the pool.\n");
+        sb.append("# TYPE nihttp_buffer_pool_pooled gauge\n");
+        sb.append("nihttp_buffer_pool_pooled ").append(pool.pooled()).append('\n');
+        sb.append("# HELP nihttp_log_dropped_total Number of access and error log records dropped because the log buffer was full.\n");
+        sb.append("# TYPE nihttp_log_dropped_total counter\n");
+        sb.append("nihttp_log_dropped_total ").append(log.dropped()).append('\n');
+
+        if (limiter != null) {
+            sb.append("# HELP nihttp_concurrency_limit Max number of requests handled at the same time.\n");
+            sb.append("# TYPE nihttp_concurrency_limit gauge\n");
+            sb.append("nihttp_concurrency_limit ").append(limiter.limit()).append('\n');
+            sb.append("# HELP nihttp_concurrency_in_flight Number of requests holding a slot of the concurrency limit.\n");
+            sb.append("# TYPE nihttp_concurrency_in_flight gauge\n");
+            sb.append("nihttp_concurrency_in_flight ").append(limiter.inFlight()).append('\n');
+            sb.append("# HELP nihttp_concurrency_queued Number of requests waiting for a slot.\n");
+            sb.append("# TYPE nihttp_concurrency_queued gauge\n");
+            sb.append("nihttp_concurrency_queued ").append(limiter.queued()).append('\n');
+            sb.append("# HELP nihttp_concurrency_rejected_total Number of requests rejected with a 503 status.\n");
+            sb.append("# TYPE nihttp_concurrency_rejected_total counter\n");
+            sb.append("nihttp_concurrency_rejected_total ").append(limiter.rejected()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static StringBuilder labels(StringBuilder sb, RouteMetrics route) {
+        sb.append("method=\"");
+        escape(sb, route.method).append("\",route=\"");
+        return escape(sb, route.path).append('"');
+    }
+
+    private static StringBuilder escape(StringBuilder sb, String value) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' || c == '"') {
+                sb.append('\\').append(c);
+            } else if (c == '\n') {
+                sb.append("\\n");
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb;
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9g", nanos / 1e9).replaceFirst("\\.?0+(e|$)", "$1");
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+/**
+ * Thrown when a request body is bigger than the allowed maximum size.
+ * If not handled by the {@link RequestHandler}, the server answer with a 413 status code and close the connection.
+ */
+public final class PayloadTooLargeException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long maxSize;
+
+    public PayloadTooLargeException(long maxSize) {
+        super("Request body is bigger than the allowed maximum size of " + maxSize + " bytes");
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Get the allowed maximum size.
+     *
+     * @return max size in bytes
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+}
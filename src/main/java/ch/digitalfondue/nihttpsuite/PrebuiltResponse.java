@@ -0,0 +1,213 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpRequest;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.Method;
+import org.apache.hc.core5.http.io.entity.AbstractHttpEntity;
+import org.apache.hc.core5.http.message.BasicHeader;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * Immutable response: status, headers and body encoded once, with an ETag computed from the body.
+ *
+ * Registered with {@link Server.RouteBuilder#prebuilt(String, PrebuiltResponse)}, it is served without calling any
+ * handler and without allocating a body: all the requests share the same entity and header instances. A GET or HEAD
+ * request with a matching If-None-Match header gets a 304 response. The body is not compressed.
+ *
+ * It is also a {@link RequestHandler}, used as a plain handler when the route is wrapped, for example by a cache.
+ */
+public final class PrebuiltResponse implements RequestHandler {
+
+    private final int status;
+    private final Entity entity;
+    private final Header etag;
+    private final Header[] headers;
+
+    private PrebuiltResponse(int status, Entity entity, Header etag, Header[] headers) {
+        this.status = status;
+        this.entity = entity;
+        this.etag = etag;
+        this.headers = headers;
+    }
+
+    /**
+     * @param status      status code
+     * @param body        body, encoded in UTF-8
+     * @param contentType content type, like "text/plain"
+     * @return prebuilt response
+     */
+    public static PrebuiltResponse of(int status, String body, String contentType) {
+        return of(status, body.getBytes(StandardCharsets.UTF_8), ContentType.create(contentType, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @param status      status code
+     * @param body        body, copied
+     * @param contentType content type, like "application/json"
+     * @return prebuilt response
+     */
+    public static PrebuiltResponse of(int status, byte[] body, String contentType) {
+        return of(status, body.clone(), ContentType.parse(contentType));
+    }
+
+    static PrebuiltResponse of(int status, byte[] body, ContentType contentType) {
+        if (status < 200 || status > 599) {
+            throw new IllegalArgumentException("Invalid status " + status);
+        }
+        BasicHeader etag = new BasicHeader(HttpHeaders.ETAG, etag(body));
+        return new PrebuiltResponse(status, new Entity(body, contentType), etag, new Header[]{etag});
+    }
+
+    /**
+     * Add a header, like Cache-Control.
+     *
+     * @param name  header name
+     * @param value header value
+     * @return a new prebuilt response with the header
+     */
+    public PrebuiltResponse header(String name, String value) {
+        Header[] newHeaders = Arrays.copyOf(headers, headers.length + 1);
+        newHeaders[headers.length] = new BasicHeader(name, value);
+        return new PrebuiltResponse(status, entity, etag, newHeaders);
+    }
+
+    /**
+     * @return the entity tag, computed from the body
+     */
+    public String etag() {
+        return etag.getValue();
+    }
+
+    int status() {
+        return status;
+    }
+
+    /**
+     * Set the status, headers and shared entity of the given response.
+     */
+    void writeTo(HttpRequest request, ClassicHttpResponse response) {
+        for (Header header : headers) {
+            response.addHeader(header);
+        }
+        if (status == HttpStatus.SC_OK && notModified(request)) {
+            response.setCode(HttpStatus.SC_NOT_MODIFIED);
+            return;
+        }
+        response.setCode(status);
+        response.setEntity(entity);
+    }
+
+    private boolean notModified(HttpRequest request) {
+        if (!Method.GET.isSame(request.getMethod()) && !Method.HEAD.isSame(request.getMethod())) {
+            return false;
+        }
+        Header ifNoneMatch = request.getFirstHeader(HttpHeaders.IF_NONE_MATCH);
+        return ifNoneMatch != null && StaticFiles.etagMatch(ifNoneMatch.getValue(), etag.getValue());
+    }
+
+    /**
+     * Handler form, used when the route is wrapped: no conditional request support.
+     */
+    @Override
+    public void handle(Request request, Response response) {
+        response.code(status);
+        for (Header header : headers) {
+            response.addHeader(header.getName(), header.getValue());
+        }
+        ContentType contentType = entity.contentType;
+        response.body(entity.body, contentType.getMimeType(), contentType.getCharset());
+    }
+
+    private static String etag(byte[] body) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(body);
+            StringBuilder sb = new StringBuilder(34).append('"');
+            for (int i = 0; i < 16; i++) {
+                sb.append(Character.forDigit((digest[i] >> 4) & 0xF, 16)).append(Character.forDigit(digest[i] & 0xF, 16));
+            }
+            return sb.append('"').toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Shared by all the responses: stateless.
+     */
+    static final class Entity extends AbstractHttpEntity {
+
+        private final byte[] body;
+        private final ContentType contentType;
+
+        Entity(byte[] body, ContentType contentType) {
+            super(contentType, null, false);
+            this.body = body;
+            this.contentType = contentType;
+        }
+
+        /**
+         * @return a new read only buffer over the body
+         */
+        ByteBuffer content() {
+            return ByteBuffer.wrap(body).asReadOnlyBuffer();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            out.write(body);
+            out.flush();
+        }
+
+        @Override
+        public InputStream getContent() {
+            return new ByteArrayInputStream(body);
+        }
+
+        @Override
+        public long getContentLength() {
+            return body.length;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.AbstractHttpEntity;
+import org.apache.hc.core5.http.nio.DataStreamChannel;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Entity of a {@link ResponseStream} or {@link EventSink}: the written content is queued on flush and sent by
+ *
+ * <ul>
+ *     <li>the classic server, in {@link #writeTo(OutputStream)}: the connection thread waits for the flushed chunks,</li>
+ *     <li>the async server, in {@link #produce(DataStreamChannel)}: the I/O reactor pulls the flushed chunks when the
+ *     connection is writable, no thread is held between two events.</li>
+ * </ul>
+ *
+ * The heartbeats are written by a single shared scheduler thread.
+ */
+final class PushEntity extends AbstractHttpEntity implements EventSink {
+
+    static final int MAX_PENDING_BYTES = 1024 * 1024;
+    private static final byte[] HEARTBEAT = ":\n\n".getBytes(StandardCharsets.UTF_8);
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition flushed = lock.newCondition();
+    // guarded by lock
+    private byte[] staged = new byte[256];
+    private int stagedLength;
+    private final ArrayDeque<ByteBuffer> pending = new ArrayDeque<>();
+    private int pendingBytes;
+    private boolean closed;
+    private boolean ended;
+    private long lastFlush = System.nanoTime();
+    private List<Runnable> closeCallbacks;
+    private DataStreamChannel channel;
+    // errors of the close callbacks, null without server
+    private final AccessLog log;
+
+    private volatile ScheduledFuture<?> heartbeat;
+
+    PushEntity(ContentType contentType, AccessLog log) {
+        super(contentType, null, true);
+        this.log = log;
+    }
+
+    /**
+     * Send a comment when nothing was flushed during the interval, to keep the connection open through the proxies
+     * and to detect the disconnected clients.
+     */
+    void heartbeat(long intervalNanos) {
+        heartbeat = Heartbeats.EXECUTOR.scheduleAtFixedRate(() -> {
+            boolean idle;
+            lock.lock();
+            try {
+                idle = System.nanoTime() - lastFlush >= intervalNanos;
+            } finally {
+                lock.unlock();
+            }
+            if (idle) {
+                write(HEARTBEAT).flush();
+            }
+        }, intervalNanos, intervalNanos, TimeUnit.NANOSECONDS);
+        if (!isOpen()) {
+            heartbeat.cancel(false);
+        }
+    }
+
+    @Override
+    public PushEntity write(byte[] chunk) {
+        lock.lock();
+        try {
+            if (closed) {
+                return this;
+            }
+            if (stagedLength + chunk.length > staged.length) {
+                staged = Arrays.copyOf(staged, Math.max(staged.length * 2, stagedLength + chunk.length));
+            }
+            System.arraycopy(chunk, 0, staged, stagedLength, chunk.length);
+            stagedLength += chunk.length;
+        } finally {
+            lock.unlock();
+        }
+        return this;
+    }
+
+    @Override
+    public PushEntity flush() {
+        DataStreamChannel output;
+        boolean overflow;
+        lock.lock();
+        try {
+            if (closed || stagedLength == 0) {
+                return this;
+            }
+            overflow = pendingBytes + stagedLength > MAX_PENDING_BYTES;
+            if (!overflow) {
+                pending.add(ByteBuffer.wrap(Arrays.copyOf(staged, stagedLength)));
+                pendingBytes += stagedLength;
+                stagedLength = 0;
+                lastFlush = System.nanoTime();
+                flushed.signal();
+            }
+            output = channel;
+        } finally {
+            lock.unlock();
+        }
+        if (overflow) {
+            // the client does not read
+            abort();
+        } else if (output != null) {
+            // outside of the lock: the I/O reactor may hold the connection lock while calling produce
+            output.requestOutput();
+        }
+        return this;
+    }
+
+    @Override
+    public void close() {
+        flush();
+        end(false);
+    }
+
+    /**
+     * Close the stream without sending the pending content, for example when the client disconnected.
+     */
+    void abort() {
+        end(true);
+    }
+
+    private void end(boolean discardPending) {
+        DataStreamChannel output;
+        List<Runnable> callbacks;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            if (discardPending) {
+                pending.clear();
+                pendingBytes = 0;
+            }
+            flushed.signal();
+            output = channel;
+            callbacks = closeCallbacks;
+            closeCallbacks = null;
+        } finally {
+            lock.unlock();
+        }
+        ScheduledFuture<?> task = heartbeat;
+        if (task != null) {
+            task.cancel(false);
+        }
+        if (output != null) {
+            output.requestOutput();
+        }
+        if (callbacks != null) {
+            callbacks.forEach(this::runCallback);
+        }
+    }
+
+    private void runCallback(Runnable callback) {
+        try {
+            callback.run();
+        } catch (RuntimeException e) {
+            if (log != null) {
+                log.error(null, e);
+            } else {
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        lock.lock();
+        try {
+            return !closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public PushEntity onClose(Runnable callback) {
+        lock.lock();
+        try {
+            if (!closed) {
+                if (closeCallbacks == null) {
+                    closeCallbacks = new ArrayList<>(1);
+                }
+                closeCallbacks.add(callback);
+                return this;
+            }
+        } finally {
+            lock.unlock();
+        }
+        runCallback(callback);
+        return this;
+    }
+
+    // async server
+
+    int available() {
+        lock.lock();
+        try {
+            // a closed stream has something to produce: its end
+            return closed && !ended ? Math.max(1, pendingBytes) : pendingBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void produce(DataStreamChannel channel) throws IOException {
+        lock.lock();
+        try {
+            this.channel = channel;
+            ByteBuffer chunk;
+            while ((chunk = pending.peek()) != null) {
+                pendingBytes -= channel.write(chunk);
+                if (chunk.hasRemaining()) {
+                    // the connection is not writable: produce is called again when it is
+                    return;
+                }
+                pending.poll();
+            }
+            if (closed && !ended) {
+                ended = true;
+                channel.endStream();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // classic server
+
+    @Override
+    public void writeTo(OutputStream out) throws IOException {
+        try {
+            ByteBuffer chunk;
+            while ((chunk = nextChunk()) != null) {
+                out.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+                out.flush();
+            }
+        } catch (InterruptedException e) {
+            abort();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (IOException | RuntimeException e) {
+            abort();
+            throw e;
+        }
+    }
+
+    /**
+     * The content as it is flushed: a read waits for the next flush, until the stream is closed. Closing the
+     * returned stream before its end aborts the response stream. Like {@link #writeTo(OutputStream)}, can be
+     * called once.
+     */
+    @Override
+    public InputStream getContent() {
+        return new InputStream() {
+            private ByteBuffer chunk;
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                if (len == 0) {
+                    return 0;
+                }
+                try {
+                    while (chunk == null || !chunk.hasRemaining()) {
+                        chunk = nextChunk();
+                        if (chunk == null) {
+                            return -1;
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    abort();
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                int count = Math.min(len, chunk.remaining());
+                chunk.get(b, off, count);
+                return count;
+            }
+
+            @Override
+            public void close() {
+                abort();
+            }
+        };
+    }
+
+    // wait for the next flushed chunk, null when the stream is closed and all the chunks are taken
+    private ByteBuffer nextChunk() throws InterruptedException {
+        lock.lock();
+        try {
+            while (pending.isEmpty() && !closed) {
+                flushed.await();
+            }
+            ByteBuffer chunk = pending.poll();
+            if (chunk == null) {
+                ended = true;
+                return null;
+            }
+            pendingBytes -= chunk.remaining();
+            return chunk;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return true;
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return false;
+    }
+
+    private static final class Heartbeats {
+        private static final ScheduledThreadPoolExecutor EXECUTOR = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread t = new Thread(r, "ni-http-heartbeat");
+            t.setDaemon(true);
+            return t;
+        });
+
+        static {
+            EXECUTOR.setRemoveOnCancelPolicy(true);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.EndpointDetails;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.apache.hc.core5.http.protocol.HttpCoreContext;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.Arrays;
+
+/**
+ * Token bucket by client key: at most permits requests in a burst, refilled at permits per period.
+ *
+ * Each bucket is stored as a single "theoretical arrival time" (the GCRA form of the token bucket): the bucket is
+ * full when it is in the past, each request moves it forward by period / permits. The keys are spread over
+ * independently locked stripes, each one an open addressing table with preallocated arrays: a check does not
+ * allocate, except for the key itself when it is not already an existing object (remote address or header value).
+ *
+ * When a stripe is full, the idle keys (full buckets) are dropped; if none is idle, the key closest to a full
+ * bucket is dropped: a client may then get a new full bucket, the table size stays bounded.
+ */
+final class RateLimiter {
+
+    static final int DEFAULT_MAX_KEYS = 64 * 1024;
+    private static final int STRIPES = 64;
+    // for the requests without remote address
+    private static final Object UNKNOWN_CLIENT = new Object();
+
+    private final int permits;
+    private final long intervalNanos;
+    private final long burstNanos;
+    private final String header;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /**
+     * @param permits     bucket size
+     * @param periodNanos time to refill an empty bucket
+     * @param header      header used as key, null to use the remote address
+     * @param maxKeys     max number of keys
+     */
+    RateLimiter(int permits, long periodNanos, String header, int maxKeys) {
+        if (permits <= 0 || periodNanos <= 0 || maxKeys <= 0) {
+            throw new IllegalArgumentException("permits, period and maxKeys must be positive");
+        }
+        this.permits = permits;
+        this.intervalNanos = Math.max(1, periodNanos / permits);
+        this.burstNanos = intervalNanos * (permits - 1);
+        this.header = header;
+        int stripeSize = Math.max(1, (maxKeys + STRIPES - 1) / STRIPES);
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(stripeSize);
+        }
+    }
+
+    int permits() {
+        return permits;
+    }
+
+    Object key(ClassicHttpRequest request, HttpContext context) {
+        if (header != null) {
+            Header value = request.getFirstHeader(header);
+            if (value != null && value.getValue() != null) {
+                return value.getValue();
+            }
+        }
+        Object endpoint = context.getAttribute(HttpCoreContext.CONNECTION_ENDPOINT);
+        if (endpoint instanceof EndpointDetails) {
+            SocketAddress remote = ((EndpointDetails) endpoint).getRemoteAddress();
+            if (remote instanceof InetSocketAddress) {
+                return ((InetSocketAddress) remote).getAddress();
+            }
+        }
+        return UNKNOWN_CLIENT;
+    }
+
+    /**
+     * Take a token from the bucket of the given key.
+     *
+     * @param key client key, see {@link #key(ClassicHttpRequest, HttpContext)}
+     * @return 0 if the request is allowed, else the nanoseconds to wait for the next token
+     */
+    long acquire(Object key) {
+        int hash = hash(key);
+        // the high bits select the stripe, the low ones the slot
+        Stripe stripe = stripes[hash >>> 26];
+        synchronized (stripe) {
+            return stripe.acquire(key, hash, System.nanoTime());
+        }
+    }
+
+    private static int hash(Object key) {
+        int hash = key.hashCode();
+        return (hash ^ (hash >>> 16)) * 0x9E3779B1;
+    }
+
+    private final class Stripe {
+        private final int maxSize;
+        private final int mask;
+        private Object[] keys;
+        private long[] arrivals;
+        // same size as keys and arrivals, used when removing the idle keys
+        private Object[] spareKeys;
+        private long[] spareArrivals;
+        private int size;
+
+        private Stripe(int maxSize) {
+            this.maxSize = maxSize;
+            int capacity = Integer.highestOneBit(maxSize * 2 - 1) << 1;
+            this.mask = capacity - 1;
+            this.keys = new Object[capacity];
+            this.arrivals = new long[capacity];
+            this.spareKeys = new Object[capacity];
+            this.spareArrivals = new long[capacity];
+        }
+
+        long acquire(Object key, int hash, long now) {
+            int i = slot(keys, key, hash);
+            if (keys[i] == null) {
+                if (size == maxSize) {
+                    evict(now);
+                    i = slot(keys, key, hash);
+                }
+                keys[i] = key;
+                arrivals[i] = now;
+                size++;
+            }
+            long arrival = Math.max(arrivals[i], now);
+            long wait = arrival - burstNanos - now;
+            if (wait > 0) {
+                return wait;
+            }
+            arrivals[i] = arrival + intervalNanos;
+            return 0;
+        }
+
+        // slot of the key, or the empty slot where it should be inserted
+        private int slot(Object[] table, Object key, int hash) {
+            int i = hash & mask;
+            Object current;
+            while ((current = table[i]) != null && !current.equals(key)) {
+                i = (i + 1) & mask;
+            }
+            return i;
+        }
+
+        private void evict(long now) {
+            int oldest = -1;
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] != null && (oldest < 0 || arrivals[i] < arrivals[oldest])) {
+                    oldest = i;
+                }
+            }
+            // the oldest one is dropped in all cases: it is idle if any key is
+            size = 0;
+            for (int i = 0; i < keys.length; i++) {
+                Object key = keys[i];
+                if (key != null && i != oldest && arrivals[i] > now) {
+                    int j = slot(spareKeys, key, hash(key));
+                    spareKeys[j] = key;
+                    spareArrivals[j] = arrivals[i];
+                    size++;
+                }
+            }
+            Object[] oldKeys = keys;
+            long[] oldArrivals = arrivals;
+            keys = spareKeys;
+            arrivals = spareArrivals;
+            Arrays.fill(oldKeys, null);
+            spareKeys = oldKeys;
+            spareArrivals = oldArrivals;
+        }
+    }
+}
@@ -15,8 +15,16 @@
  */
 package ch.digitalfondue.nihttpsuite;
 
+import javax.json.JsonValue;
+import javax.json.stream.JsonParser;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.List;
 import java.util.Optional;
+import java.util.stream.Stream;
 
 /**
  * Represent a HTTP request.
@@ -79,10 +87,97 @@ public interface Request {
     /**
      * Get value of path variable defined in route.
      * For example: "/my/{var}", path is "/my/test": getPathVariable("var") return "test".
+     * A catch all variable, as last segment, match the remaining path: "/files/{*rest}", path is "/files/a/b.txt":
+     * getPathVariable("rest") return "a/b.txt".
      *
      * @param name of the path variable
      * @return path variable value.
      */
     String getPathVariable(String name);
-}
 
+    /**
+     * Get the request body as a stream. Nothing is buffered: the body is read directly from the connection.
+     * The body can be consumed only once.
+     *
+     * @return body stream, empty if the request has no body
+     * @throws IOException in case of I/O error
+     */
+    InputStream getBodyAsInputStream() throws IOException;
+
+    /**
+     * Get the request body as a channel. See {@link #getBodyAsInputStream()}.
+     *
+     * @return body channel
+     * @throws IOException in case of I/O error
+     */
+    default ReadableByteChannel getBodyAsChannel() throws IOException {
+        return Channels.newChannel(getBodyAsInputStream());
+    }
+
+    /**
+     * Read the whole request body in memory, up to the maximum size configured in the server.
+     * The result is kept, so this method can be called more than once.
+     *
+     * @return body content, empty if the request has no body
+     * @throws PayloadTooLargeException if the body is bigger than the maximum size
+     * @throws IOException in case of I/O error
+     */
+    byte[] getBodyAsBytes() throws IOException;
+
+    /**
+     * Read the whole request body in memory. See {@link #getBodyAsBytes()}.
+     *
+     * @param maxSize maximum allowed size in bytes
+     * @return body content
+     * @throws PayloadTooLargeException if the body is bigger than maxSize
+     * @throws IOException in case of I/O error
+     */
+    byte[] getBodyAsBytes(int maxSize) throws IOException;
+
+    /**
+     * Read the whole request body in memory. See {@link #getBodyAsBytes()}.
+     *
+     * @return body content
+     * @throws PayloadTooLargeException if the body is bigger than the maximum size
+     * @throws IOException in case of I/O error
+     */
+    default ByteBuffer getBodyAsByteBuffer() throws IOException {
+        return ByteBuffer.wrap(getBodyAsBytes());
+    }
+
+    /**
+     * Read and drop the remaining request body, without buffering it.
+     *
+     * @throws IOException in case of I/O error
+     */
+    void discardBody() throws IOException;
+
+    /**
+     * Get a json pull parser on the request body. The body is parsed while it's being read from the connection,
+     * so documents bigger than the available memory can be processed. See {@link #getBodyAsInputStream()}.
+     *
+     * The parser must be closed by the caller.
+     *
+     * @return json parser
+     * @throws IOException in case of I/O error
+     */
+    JsonParser getBodyAsJsonParser() throws IOException;
+
+    /**
+     * Get the elements of a json array request body as a stream. Each element is parsed only when the stream reach it,
+     * so only one element at a time is kept in memory:
+     *
+     * <pre>
+     * try (Stream&lt;JsonValue&gt; elements = req.getBodyAsJsonArrayStream()) {
+     *     elements.forEach(element -&gt; insert(element.asJsonObject()));
+     * }
+     * </pre>
+     *
+     * The stream must be closed by the caller.
+     *
+     * @return stream of array elements
+     * @throws javax.json.stream.JsonParsingException if the body is not a json array
+     * @throws IOException in case of I/O error
+     */
+    Stream<JsonValue> getBodyAsJsonArrayStream() throws IOException;
+}
@@ -16,12 +16,15 @@
 package ch.digitalfondue.nihttpsuite;
 
 import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
 import java.io.File;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.function.Consumer;
 
 /**
  * Http response. Set the response code and a body.
@@ -84,6 +87,26 @@ public interface Response {
         return body(value.toString(), "application/json");
     }
 
+    /**
+     * Stream a json document. The writer is called when the response is sent and write directly
+     * to the connection with a chunked transfer encoding: the document is never held in memory.
+     *
+     * <pre>
+     * res.ok().json(gen -&gt; {
+     *     gen.writeStartArray();
+     *     rows.forEach(row -&gt; gen.writeStartObject().write("id", row.getId()).writeEnd());
+     *     gen.writeEnd();
+     * });
+     * </pre>
+     *
+     * The generator must not be closed by the writer. The response of a cached route (see
+     * {@link Server.RouteBuilder#cache(Duration)}) is the exception: its body is read in memory.
+     *
+     * @param writer json writer
+     * @return response
+     */
+    Response json(Consumer<JsonGenerator> writer);
+
     Response body(String body, String contentType, Charset charset);
 
     //
@@ -121,6 +144,20 @@ public interface Response {
     }
 
     Response body(InputStream inputStream, String contentType, Charset charset);
+
+    /**
+     * Body of a known length: sent with a Content-Length header instead of the chunked encoding. A response
+     * decorator should forward this method, the default implementation ignores the length.
+     *
+     * @param inputStream   body
+     * @param contentLength number of bytes of the body, -1 if unknown
+     * @param contentType   content type
+     * @param charset       charset, can be null
+     * @return response
+     */
+    default Response body(InputStream inputStream, long contentLength, String contentType, Charset charset) {
+        return body(inputStream, contentType, charset);
+    }
     //
 
 
@@ -147,5 +184,68 @@ public interface Response {
 
     Response body(ByteBuffer body, String contentType, Charset charset);
     //
+
+    /**
+     * Write a body encoded in UTF-8. See {@link #writer(String, Charset)}.
+     *
+     * @param contentType content type, like "text/html"
+     * @return response writer
+     */
+    default ResponseWriter writer(String contentType) {
+        return writer(contentType, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Write the body piece by piece, for example from a template. The characters are encoded directly in pooled
+     * buffers, without building an intermediate String or byte array. The writer must be used before the handler
+     * returns; the response is then sent with a Content-Length. For a body already held in a single String,
+     * {@link #body(String, String)} is as fast.
+     *
+     * <pre>
+     * ResponseWriter out = res.ok().writer("text/html");
+     * out.append("&lt;ul&gt;");
+     * items.forEach(item -&gt; out.append("&lt;li&gt;").append(item.getName()).append("&lt;/li&gt;"));
+     * out.append("&lt;/ul&gt;");
+     * </pre>
+     *
+     * @param contentType content type, like "text/html"
+     * @param charset     charset
+     * @return response writer
+     */
+    ResponseWriter writer(String contentType, Charset charset);
+
+    /**
+     * Stream the body over time, with a chunked transfer encoding (or HTTP/2 data frames). The returned stream can be
+     * written and flushed from any thread, until it is closed: the response ends only then.
+     *
+     * In async mode, an open stream does not hold any thread. With the classic server, each open stream holds its
+     * connection thread.
+     *
+     * @param contentType content type, like "application/x-ndjson"
+     * @return response stream
+     */
+    ResponseStream stream(String contentType);
+
+    /**
+     * Stream Server-Sent Events, with a heartbeat comment every 15 seconds without events.
+     * See {@link #eventStream(Duration)}.
+     *
+     * @return event sink
+     */
+    default EventSink eventStream() {
+        return eventStream(Duration.ofSeconds(15));
+    }
+
+    /**
+     * Stream Server-Sent Events ("text/event-stream" content type), see {@link #stream(String)}.
+     *
+     * A heartbeat comment is sent when no event was flushed during the interval: it keeps the connection open through
+     * the proxies and it detects the disconnected clients, the stream is then closed. The interval must be shorter
+     * than the idle timeout of the server (30 seconds by default).
+     *
+     * @param heartbeatInterval heartbeat interval, null to disable the heartbeats
+     * @return event sink
+     */
+    EventSink eventStream(Duration heartbeatInterval);
 }
 
@@ -0,0 +1,271 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.Header;
+import org.apache.hc.core5.http.HttpEntity;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+import org.apache.hc.core5.http.message.BasicClassicHttpResponse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Cache the responses of a route handler.
+ *
+ * The key is built from the request path (the path variables included) and the selected query parameters and
+ * headers. Entries are evicted after their time to live or, least recently used first, when the cache size is over
+ * the limit. Concurrent misses on the same key run the handler once, the other requests wait for its response.
+ *
+ * The range and conditional requests are not part of the key: they always run the handler.
+ */
+final class ResponseCache implements RequestHandler {
+
+    static final long DEFAULT_MAX_SIZE = 16 * 1024 * 1024;
+
+    private static final String[] BYPASS_HEADERS = {HttpHeaders.RANGE, HttpHeaders.IF_RANGE, HttpHeaders.IF_NONE_MATCH,
+            HttpHeaders.IF_MODIFIED_SINCE, HttpHeaders.IF_MATCH, HttpHeaders.IF_UNMODIFIED_SINCE};
+
+    private final RequestHandler handler;
+    private final long ttlNanos;
+    private final long maxSize;
+    private final String[] queryParameters;
+    private final String[] headers;
+
+    private long size;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final ConcurrentHashMap<String, CompletableFuture<Entry>> inFlight = new ConcurrentHashMap<>();
+
+    ResponseCache(RequestHandler handler, long ttlNanos, long maxSize, List<String> queryParameters, List<String> headers) {
+        this.handler = handler;
+        this.ttlNanos = ttlNanos;
+        this.maxSize = maxSize;
+        this.queryParameters = queryParameters.toArray(new String[0]);
+        this.headers = headers.toArray(new String[0]);
+    }
+
+    @Override
+    public void handle(Request req, Response res) throws Exception {
+        if (isRangeOrConditional(req)) {
+            handler.handle(req, res);
+            return;
+        }
+        String key = key(req);
+        Entry entry = get(key);
+        if (entry != null) {
+            entry.writeTo(res);
+            return;
+        }
+
+        CompletableFuture<Entry> pending = new CompletableFuture<>();
+        CompletableFuture<Entry> running = inFlight.putIfAbsent(key, pending);
+        if (running != null) {
+            entry = await(running);
+            // an error or a response for a single client is not given to the other requests
+            if (entry.cacheable) {
+                entry.writeTo(res);
+            } else {
+                handler.handle(req, res);
+            }
+            return;
+        }
+
+        try {
+            // the previous leader may have completed between the lookup and the registration
+            entry = get(key);
+            if (entry == null) {
+                entry = capture(req, res);
+                if (entry.cacheable) {
+                    put(key, entry);
+                }
+            }
+            pending.complete(entry);
+        } catch (Exception | Error e) {
+            pending.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, pending);
+        }
+        entry.writeTo(res);
+    }
+
+    private static boolean isRangeOrConditional(Request req) {
+        for (String name : BYPASS_HEADERS) {
+            if (req.getHeader(name).isPresent()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Every component is length prefixed: a separator that arrives percent encoded in a value cannot make two
+     * different requests share a key.
+     */
+    private String key(Request req) {
+        StringBuilder sb = new StringBuilder();
+        appendComponent(sb, req.getPath());
+        for (String name : queryParameters) {
+            appendComponents(sb, req.getQueryParameters(name));
+        }
+        for (String name : headers) {
+            appendComponents(sb, req.getHeaders(name));
+        }
+        return sb.toString();
+    }
+
+    private static void appendComponents(StringBuilder sb, List<String> values) {
+        sb.append(values.size()).append(';');
+        for (String value : values) {
+            appendComponent(sb, value);
+        }
+    }
+
+    private static void appendComponent(StringBuilder sb, String value) {
+        if (value == null) {
+            // a parameter without '=' is distinct from an empty value
+            sb.append("-;");
+        } else {
+            sb.append(value.length()).append(':').append(value);
+        }
+    }
+
+    private static Entry await(CompletableFuture<Entry> running) throws Exception {
+        try {
+            return running.join();
+        } catch (CompletionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        }
+    }
+
+    private Entry capture(Request req, Response res) throws Exception {
+        BasicClassicHttpResponse captured = new BasicClassicHttpResponse(HttpStatus.SC_OK);
+        handler.handle(req, new Server.ResponseWrapper(captured, Server.ResponseWrapper.log(res)));
+        if (captured.getEntity() instanceof PushEntity) {
+            ((PushEntity) captured.getEntity()).abort();
+            throw new IllegalStateException("A streamed response cannot be cached, route " + req.getPath());
+        }
+        byte[] body = null;
+        String contentType = null;
+        String contentEncoding = null;
+        try (HttpEntity entity = captured.getEntity()) {
+            if (entity != null) {
+                ByteArrayOutputStream out = new ByteArrayOutputStream(entity.getContentLength() > 0 ? (int) entity.getContentLength() : 1024);
+                entity.writeTo(out);
+                body = out.toByteArray();
+                contentType = entity.getContentType();
+                contentEncoding = entity.getContentEncoding();
+            }
+        }
+        return new Entry(captured.getCode(), captured.getHeaders(), body, contentType, contentEncoding, System.nanoTime() + ttlNanos);
+    }
+
+    private synchronized Entry get(String key) {
+        Entry entry = entries.get(key);
+        if (entry != null && System.nanoTime() - entry.expiresAt >= 0) {
+            entries.remove(key);
+            size -= entry.size;
+            return null;
+        }
+        return entry;
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        entry.size += key.length() * 2L;
+        if (entry.size > maxSize) {
+            return;
+        }
+        Entry previous = entries.put(key, entry);
+        size += entry.size - (previous == null ? 0 : previous.size);
+        Iterator<Entry> it = entries.values().iterator();
+        while (size > maxSize && it.hasNext()) {
+            size -= it.next().size;
+            it.remove();
+        }
+    }
+
+    private static final class Entry {
+        private final int code;
+        private final Header[] headers;
+        private final byte[] body;
+        private final ContentType contentType;
+        private final String contentEncoding;
+        private final long expiresAt;
+        // a response for a single client or an error is never given to another request
+        private final boolean cacheable;
+        private long size;
+
+        private Entry(int code, Header[] headers, byte[] body, String contentType, String contentEncoding, long expiresAt) {
+            this.code = code;
+            this.headers = headers;
+            this.body = body;
+            this.contentType = contentType == null ? null : ContentType.parse(contentType);
+            this.contentEncoding = contentEncoding;
+            this.expiresAt = expiresAt;
+            this.cacheable = !isPrivate(headers) && isCacheableStatus(code);
+            long headersSize = 0;
+            for (Header header : headers) {
+                headersSize += (header.getName().length() + header.getValue().length()) * 2L;
+            }
+            this.size = (body == null ? 0 : body.length) + headersSize + 64;
+        }
+
+        private static boolean isPrivate(Header[] headers) {
+            for (Header header : headers) {
+                if ("Set-Cookie".equalsIgnoreCase(header.getName())) {
+                    return true;
+                }
+                if (HttpHeaders.CACHE_CONTROL.equalsIgnoreCase(header.getName())) {
+                    String value = header.getValue().toLowerCase(Locale.ROOT);
+                    if (value.contains("no-store") || value.contains("private")) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        // server errors are not cached, the next request will retry
+        private static boolean isCacheableStatus(int code) {
+            return (code >= HttpStatus.SC_OK && code < HttpStatus.SC_MULTIPLE_CHOICES && code != HttpStatus.SC_PARTIAL_CONTENT)
+                    || code == HttpStatus.SC_MOVED_PERMANENTLY
+                    || code == HttpStatus.SC_NOT_FOUND
+                    || code == HttpStatus.SC_GONE;
+        }
+
+        private void writeTo(Response response) throws IOException {
+            response.code(code);
+            for (Header header : headers) {
+                response.addHeader(header.getName(), header.getValue());
+            }
+            Server.ResponseWrapper.entity(response, body == null ? null : new ByteArrayEntity(body, contentType, contentEncoding), null);
+        }
+    }
+}
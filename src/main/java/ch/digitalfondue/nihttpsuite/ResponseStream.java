@@ -0,0 +1,73 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Response body written over time, see {@link Response#stream(String)}.
+ *
+ * The methods can be called from any thread, also after the {@link RequestHandler} returned. The written content is
+ * sent to the client only on {@link #flush()}. When the client does not read fast enough and more than 1MB is waiting
+ * to be sent, the stream is closed.
+ */
+public interface ResponseStream extends AutoCloseable {
+
+    /**
+     * Write a chunk. Ignored if the stream is closed.
+     *
+     * @param chunk content
+     * @return this stream
+     */
+    ResponseStream write(byte[] chunk);
+
+    /**
+     * Write a chunk encoded in UTF-8. Ignored if the stream is closed.
+     *
+     * @param chunk content
+     * @return this stream
+     */
+    default ResponseStream write(String chunk) {
+        return write(chunk.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Send the content written since the last flush.
+     *
+     * @return this stream
+     */
+    ResponseStream flush();
+
+    /**
+     * Send the content written since the last flush and end the response.
+     */
+    @Override
+    void close();
+
+    /**
+     * @return false once the stream is closed, by {@link #close()} or because the client disconnected
+     */
+    boolean isOpen();
+
+    /**
+     * Register a callback run once when the stream is closed, by {@link #close()} or because the client disconnected.
+     * Run immediately if the stream is already closed.
+     *
+     * @param callback callback, for example to remove a subscriber
+     * @return this stream
+     */
+    ResponseStream onClose(Runnable callback);
+}
@@ -0,0 +1,548 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.io.entity.AbstractHttpEntity;
+import org.apache.hc.core5.http.nio.DataStreamChannel;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Response body writer, see {@link Response#writer(String)}.
+ *
+ * The characters are encoded directly in pooled direct buffers, without intermediate String or byte array: in async
+ * mode the buffers are handed to the connection as they are, with the classic server they are copied once to the
+ * socket stream. The buffers go back to the pool when the response is sent.
+ *
+ * The writer must be used only by the thread running the {@link RequestHandler}, before it returns. Unpaired
+ * surrogates are encoded as '?'.
+ *
+ * The small writes are staged in an array of the thread. A virtual thread runs a single request, so on virtual
+ * threads the writer takes its staging arrays from a shared pool instead, and gives them back when it completes.
+ */
+public final class ResponseWriter extends Writer {
+
+    // small writes are staged in a per thread array and copied in bulk to the direct buffers: putting each fragment
+    // in a direct buffer costs much more than an array copy. The classic server also copies the buffers to the socket
+    // stream through the array, the stream only accepts byte arrays.
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+    // staging arrays of the writers running on virtual threads
+    private static final int MAX_POOLED_SCRATCHES = Runtime.getRuntime().availableProcessors() * 16;
+    private static final ConcurrentLinkedQueue<Scratch> SCRATCH_POOL = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger SCRATCH_POOL_SIZE = new AtomicInteger();
+
+    private final BufferPool pool;
+    private final int stripe;
+    // null for UTF-8, encoded without CharsetEncoder
+    private final CharsetEncoder encoder;
+    // from SCRATCH_POOL on a virtual thread, else the one of the thread
+    private final boolean pooledScratch = VirtualThreads.isCurrentThreadVirtual();
+    private final Scratch scratch = pooledScratch ? acquireScratch() : SCRATCH.get();
+    private final List<ByteBuffer> buffers = new ArrayList<>(4);
+    private final Body body;
+    private ByteBuffer current;
+    // high surrogate at the end of the previous write
+    private char pendingHighSurrogate;
+    private boolean finished;
+
+    ResponseWriter(BufferPool pool, ContentType contentType) {
+        this.pool = pool;
+        this.stripe = pool.stripe();
+        Charset charset = contentType.getCharset();
+        this.encoder = charset == null || StandardCharsets.UTF_8.equals(charset) ? null : charset.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        this.body = new Body(contentType);
+    }
+
+    Body body() {
+        return body;
+    }
+
+    @Override
+    public void write(int c) {
+        append((char) c);
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > chars.length) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length + ", array length " + chars.length);
+        }
+        if (encoder != null) {
+            encode(CharBuffer.wrap(chars, offset, length));
+        } else {
+            encodeUtf8(chars, offset, offset + length);
+        }
+    }
+
+    @Override
+    public void write(String str) {
+        append(str, 0, str.length());
+    }
+
+    @Override
+    public void write(String str, int offset, int length) {
+        append(str, offset, offset + length);
+    }
+
+    /**
+     * Write raw bytes, for example an already encoded fragment.
+     *
+     * @param bytes content
+     */
+    public void write(byte[] bytes) {
+        write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Write raw bytes, for example an already encoded fragment.
+     *
+     * @param bytes  content
+     * @param offset start offset
+     * @param length number of bytes
+     */
+    public void write(byte[] bytes, int offset, int length) {
+        flushPendingSurrogate();
+        Scratch s = claim();
+        if (length <= s.bytes.length - s.length) {
+            System.arraycopy(bytes, offset, s.bytes, s.length, length);
+            s.length += length;
+        } else {
+            drain();
+            put(bytes, offset, length);
+        }
+    }
+
+    @Override
+    public ResponseWriter append(char c) {
+        if (encoder == null && pendingHighSurrogate == 0 && c < 0x80) {
+            stage((byte) c);
+            return this;
+        }
+        return append(String.valueOf(c), 0, 1);
+    }
+
+    @Override
+    public ResponseWriter append(CharSequence csq) {
+        CharSequence chars = csq == null ? "null" : csq;
+        return append(chars, 0, chars.length());
+    }
+
+    @Override
+    public ResponseWriter append(CharSequence csq, int start, int end) {
+        CharSequence chars = csq == null ? "null" : csq;
+        if (start < 0 || end > chars.length() || start > end) {
+            throw new IndexOutOfBoundsException("start " + start + ", end " + end + ", length " + chars.length());
+        }
+        if (encoder != null) {
+            encode(CharBuffer.wrap(chars, start, end));
+            return this;
+        }
+        if (chars instanceof String && scratch.owner == this && pendingHighSurrogate == 0) {
+            start = appendAscii((String) chars, start, end);
+            if (start == end) {
+                return this;
+            }
+        }
+        char[] buffer = scratch.chars;
+        while (start < end) {
+            int count = Math.min(end - start, buffer.length);
+            if (chars instanceof String) {
+                ((String) chars).getChars(start, start + count, buffer, 0);
+            } else if (chars instanceof StringBuilder) {
+                ((StringBuilder) chars).getChars(start, start + count, buffer, 0);
+            } else {
+                for (int i = 0; i < count; i++) {
+                    buffer[i] = chars.charAt(start + i);
+                }
+            }
+            encodeUtf8(buffer, 0, count);
+            start += count;
+        }
+        return this;
+    }
+
+    /**
+     * Nothing to do: the content is sent when the handler returns.
+     */
+    @Override
+    public void flush() {
+    }
+
+    /**
+     * Nothing to do: the content is sent when the handler returns.
+     */
+    @Override
+    public void close() {
+    }
+
+    // fast path for the small fragments: the ascii prefix fitting in the staged bytes
+    private int appendAscii(String str, int start, int end) {
+        Scratch s = scratch;
+        if (end - start > s.bytes.length - s.length) {
+            return start;
+        }
+        byte[] bytes = s.bytes;
+        int length = s.length;
+        int i = start;
+        char c;
+        while (i < end && (c = str.charAt(i)) < 0x80) {
+            bytes[length++] = (byte) c;
+            i++;
+        }
+        s.length = length;
+        return i;
+    }
+
+    private void encodeUtf8(char[] chars, int start, int end) {
+        Scratch s = claim();
+        byte[] bytes = s.bytes;
+        // room for a 4 bytes sequence
+        int limit = bytes.length - 4;
+        int length = s.length;
+        int i = start;
+        if (pendingHighSurrogate != 0 && i < end) {
+            char high = pendingHighSurrogate;
+            pendingHighSurrogate = 0;
+            if (length > limit) {
+                put(bytes, 0, length);
+                length = 0;
+            }
+            if (Character.isLowSurrogate(chars[i])) {
+                length = putCodePoint(bytes, length, Character.toCodePoint(high, chars[i++]));
+            } else {
+                bytes[length++] = '?';
+            }
+        }
+        while (i < end) {
+            if (length > limit) {
+                put(bytes, 0, length);
+                length = 0;
+            }
+            char c;
+            // ascii run
+            int asciiEnd = Math.min(end, i + limit - length);
+            while (i < asciiEnd && (c = chars[i]) < 0x80) {
+                bytes[length++] = (byte) c;
+                i++;
+            }
+            if (i == end || length > limit) {
+                continue;
+            }
+            c = chars[i++];
+            if (c < 0x80) {
+                bytes[length++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[length++] = (byte) (0xC0 | (c >> 6));
+                bytes[length++] = (byte) (0x80 | (c & 0x3F));
+            } else if (!Character.isSurrogate(c)) {
+                bytes[length++] = (byte) (0xE0 | (c >> 12));
+                bytes[length++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[length++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i == end) {
+                // the low surrogate may come with the next write
+                pendingHighSurrogate = c;
+            } else if (Character.isHighSurrogate(c) && Character.isLowSurrogate(chars[i])) {
+                length = putCodePoint(bytes, length, Character.toCodePoint(c, chars[i++]));
+            } else {
+                bytes[length++] = '?';
+            }
+        }
+        s.length = length;
+    }
+
+    private static int putCodePoint(byte[] bytes, int offset, int codePoint) {
+        bytes[offset] = (byte) (0xF0 | (codePoint >> 18));
+        bytes[offset + 1] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+        bytes[offset + 2] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+        bytes[offset + 3] = (byte) (0x80 | (codePoint & 0x3F));
+        return offset + 4;
+    }
+
+    // each write is encoded on its own: a surrogate pair split over two writes is replaced
+    private void encode(CharBuffer chars) {
+        Scratch s = claim();
+        ByteBuffer bytes = ByteBuffer.wrap(s.bytes, s.length, s.bytes.length - s.length);
+        while (encoder.encode(chars, bytes, true).isOverflow()) {
+            put(s.bytes, 0, bytes.position());
+            bytes.clear();
+        }
+        while (encoder.flush(bytes).isOverflow()) {
+            put(s.bytes, 0, bytes.position());
+            bytes.clear();
+        }
+        s.length = bytes.position();
+        encoder.reset();
+    }
+
+    private void flushPendingSurrogate() {
+        if (pendingHighSurrogate != 0) {
+            pendingHighSurrogate = 0;
+            stage((byte) '?');
+        }
+    }
+
+    private void stage(byte b) {
+        Scratch s = claim();
+        if (s.length == s.bytes.length) {
+            put(s.bytes, 0, s.length);
+            s.length = 0;
+        }
+        s.bytes[s.length++] = b;
+    }
+
+    // take the staging array of the thread, the bytes staged there by another writer are moved to its buffers first
+    private Scratch claim() {
+        if (finished) {
+            throw new IllegalStateException("The response is already sent");
+        }
+        Scratch s = scratch;
+        if (s.owner != this) {
+            if (s.owner != null) {
+                s.owner.drain();
+            }
+            s.owner = this;
+        }
+        return s;
+    }
+
+    // move the staged bytes to the buffers
+    private void drain() {
+        Scratch s = scratch;
+        if (s.owner == this) {
+            put(s.bytes, 0, s.length);
+            s.length = 0;
+            s.owner = null;
+        }
+    }
+
+    private static Scratch acquireScratch() {
+        Scratch s = SCRATCH_POOL.poll();
+        if (s == null) {
+            return new Scratch();
+        }
+        SCRATCH_POOL_SIZE.decrementAndGet();
+        return s;
+    }
+
+    private static void releaseScratch(Scratch s) {
+        s.owner = null;
+        s.length = 0;
+        if (SCRATCH_POOL_SIZE.incrementAndGet() <= MAX_POOLED_SCRATCHES) {
+            SCRATCH_POOL.offer(s);
+        } else {
+            SCRATCH_POOL_SIZE.decrementAndGet();
+        }
+    }
+
+    private void put(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            ByteBuffer buffer = current;
+            if (buffer == null || !buffer.hasRemaining()) {
+                buffer = pool.acquire(stripe);
+                buffers.add(buffer);
+                current = buffer;
+            }
+            int count = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, count);
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Entity sending the written buffers.
+     */
+    final class Body extends AbstractHttpEntity {
+
+        private long length = -1;
+        private int index;
+        private boolean released;
+
+        private Body(ContentType contentType) {
+            super(contentType, null, false);
+        }
+
+        /**
+         * End the writes: called by the thread running the handler, when it returns.
+         */
+        synchronized void complete() {
+            if (finished) {
+                return;
+            }
+            flushPendingSurrogate();
+            drain();
+            finished = true;
+            if (pooledScratch) {
+                releaseScratch(scratch);
+            }
+            long total = 0;
+            for (ByteBuffer buffer : buffers) {
+                buffer.flip();
+                total += buffer.remaining();
+            }
+            length = total;
+        }
+
+        @Override
+        public synchronized long getContentLength() {
+            complete();
+            return length;
+        }
+
+        /**
+         * Async server: write the buffers directly to the connection.
+         */
+        synchronized void produce(DataStreamChannel channel) throws IOException {
+            complete();
+            if (released) {
+                return;
+            }
+            while (index < buffers.size()) {
+                ByteBuffer buffer = buffers.get(index);
+                channel.write(buffer);
+                if (buffer.hasRemaining()) {
+                    // the connection is not writable: produce is called again when it is
+                    return;
+                }
+                index++;
+            }
+            channel.endStream();
+            release();
+        }
+
+        synchronized int available() {
+            complete();
+            if (released) {
+                return 0;
+            }
+            long available = 0;
+            for (int i = index; i < buffers.size(); i++) {
+                available += buffers.get(i).remaining();
+            }
+            // at least 1 to get a last produce call ending the stream
+            return (int) Math.min(Integer.MAX_VALUE, Math.max(1, available));
+        }
+
+        @Override
+        public synchronized void writeTo(OutputStream out) throws IOException {
+            complete();
+            boolean virtual = VirtualThreads.isCurrentThreadVirtual();
+            Scratch s = virtual ? acquireScratch() : SCRATCH.get();
+            try {
+                if (s.owner != null) {
+                    s.owner.drain();
+                }
+                byte[] chunk = s.bytes;
+                for (; index < buffers.size() && !released; index++) {
+                    ByteBuffer buffer = buffers.get(index);
+                    while (buffer.hasRemaining()) {
+                        int count = Math.min(chunk.length, buffer.remaining());
+                        buffer.get(chunk, 0, count);
+                        out.write(chunk, 0, count);
+                    }
+                }
+            } finally {
+                if (virtual) {
+                    releaseScratch(s);
+                }
+                release();
+            }
+        }
+
+        /**
+         * The content copied in an array, the buffers go back to the pool. Like {@link #writeTo(OutputStream)},
+         * can be called once.
+         */
+        @Override
+        public synchronized InputStream getContent() {
+            complete();
+            try {
+                long total = 0;
+                for (int i = index; i < buffers.size(); i++) {
+                    total += buffers.get(i).remaining();
+                }
+                byte[] content = new byte[(int) total];
+                int offset = 0;
+                for (; index < buffers.size() && !released; index++) {
+                    ByteBuffer buffer = buffers.get(index);
+                    int count = buffer.remaining();
+                    buffer.get(content, offset, count);
+                    offset += count;
+                }
+                return new ByteArrayInputStream(content);
+            } finally {
+                release();
+            }
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return false;
+        }
+
+        /**
+         * Give the buffers back to the pool, also when the response is not sent.
+         */
+        @Override
+        public synchronized void close() {
+            // the length is still needed for a HEAD response
+            complete();
+            release();
+        }
+
+        private void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            for (ByteBuffer buffer : buffers) {
+                pool.release(stripe, buffer);
+            }
+            buffers.clear();
+            current = null;
+        }
+    }
+
+    private static final class Scratch {
+        private final char[] chars = new char[2048];
+        private final byte[] bytes = new byte[BufferPool.BUFFER_SIZE];
+        // writer with staged bytes, at most one at a time
+        private ResponseWriter owner;
+        private int length;
+    }
+}
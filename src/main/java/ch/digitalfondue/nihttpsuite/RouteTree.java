@@ -0,0 +1,323 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Segment based routing tree.
+ *
+ * A route template like "/test/{abc}/{def}" is split on '/' and each segment is stored as a node.
+ * A segment can be a literal ("test"), a variable ("{abc}") or a mix of both ("file-{id}.json").
+ * The last segment can be a catch all variable ("{*rest}") matching the remaining path, '/' included.
+ * Lookup walk the request path once, literal segments first, then mixed, then variables, then catch all, and record
+ * the path variables as [start, end) offsets in the given captures array.
+ */
+final class RouteTree<T> {
+
+    private final Node<T> root = new Node<>();
+    private int maxVariables;
+
+    void add(String method, String template, T value) {
+        Node<T> node = root;
+        int variables = 0;
+        List<List<Part>> segments = parse(template);
+        for (int i = 0; i < segments.size(); i++) {
+            List<Part> segment = segments.get(i);
+            if (i == segments.size() - 1 && isCatchAll(segment)) {
+                if (node.catchAllChild == null) {
+                    node.catchAllChild = new Node<>();
+                }
+                node = node.catchAllChild;
+            } else if (segment.size() == 1 && !segment.get(0).variable) {
+                node = node.staticChild(segment.get(0).value);
+            } else if (segment.size() == 1) {
+                if (node.variableChild == null) {
+                    node.variableChild = new Node<>();
+                }
+                node = node.variableChild;
+            } else {
+                node = node.patternChild(segment);
+            }
+            for (Part part : segment) {
+                variables += part.variable ? 1 : 0;
+            }
+        }
+        node.handlers.putIfAbsent(method, value);
+        maxVariables = Math.max(maxVariables, variables);
+    }
+
+    /**
+     * Size of the captures array to be given to {@link #find(String, String, int[])}.
+     *
+     * @return 2 * max number of variables in a route
+     */
+    int capturesSize() {
+        return maxVariables * 2;
+    }
+
+    T find(String method, String path, int[] captures) {
+        if (path.isEmpty() || path.charAt(0) != '/') {
+            return null;
+        }
+        return find(root, method, path, 1, captures, 0);
+    }
+
+    private static <T> T find(Node<T> node, String method, String path, int start, int[] captures, int variableIndex) {
+        int end = path.indexOf('/', start);
+        boolean last = end < 0;
+        if (last) {
+            end = path.length();
+        }
+
+        Node<T> child = node.findStaticChild(path, start, end);
+        if (child != null) {
+            T res = last ? child.handlers.get(method) : find(child, method, path, end + 1, captures, variableIndex);
+            if (res != null) {
+                return res;
+            }
+        }
+
+        for (int i = 0; i < node.patterns.length; i++) {
+            Part[] parts = node.patterns[i];
+            if (matchParts(parts, 0, path, start, end, captures, variableIndex)) {
+                Node<T> patternNode = node.patternNodes[i];
+                int nextVariableIndex = variableIndex + node.patternVariables[i];
+                T res = last ? patternNode.handlers.get(method) : find(patternNode, method, path, end + 1, captures, nextVariableIndex);
+                if (res != null) {
+                    return res;
+                }
+            }
+        }
+
+        if (node.variableChild != null && end > start) {
+            captures[variableIndex * 2] = start;
+            captures[variableIndex * 2 + 1] = end;
+            T res = last ? node.variableChild.handlers.get(method) : find(node.variableChild, method, path, end + 1, captures, variableIndex + 1);
+            if (res != null) {
+                return res;
+            }
+        }
+
+        if (node.catchAllChild != null && start < path.length()) {
+            captures[variableIndex * 2] = start;
+            captures[variableIndex * 2 + 1] = path.length();
+            return node.catchAllChild.handlers.get(method);
+        }
+        return null;
+    }
+
+    private static boolean isCatchAll(List<Part> segment) {
+        return segment.size() == 1 && segment.get(0).variable && segment.get(0).value.startsWith("*");
+    }
+
+    // variables are greedy, like the "[^/]+" regex group they replace
+    private static boolean matchParts(Part[] parts, int idx, String path, int start, int end, int[] captures, int variableIndex) {
+        if (idx == parts.length) {
+            return start == end;
+        }
+        Part part = parts[idx];
+        if (!part.variable) {
+            int length = part.value.length();
+            return end - start >= length
+                    && path.regionMatches(start, part.value, 0, length)
+                    && matchParts(parts, idx + 1, path, start + length, end, captures, variableIndex);
+        }
+        for (int variableEnd = end; variableEnd > start; variableEnd--) {
+            if (matchParts(parts, idx + 1, path, variableEnd, end, captures, variableIndex + 1)) {
+                captures[variableIndex * 2] = start;
+                captures[variableIndex * 2 + 1] = variableEnd;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Return the variable names, in order of declaration.
+     *
+     * @param template route template
+     * @return variable names
+     */
+    static String[] variableNames(String template) {
+        List<String> names = new ArrayList<>();
+        for (List<Part> segment : parse(template)) {
+            for (Part part : segment) {
+                if (part.variable) {
+                    names.add(part.value.startsWith("*") ? part.value.substring(1) : part.value);
+                }
+            }
+        }
+        return names.toArray(new String[0]);
+    }
+
+    private static List<List<Part>> parse(String template) {
+        List<List<Part>> segments = new ArrayList<>();
+        int start = template.startsWith("/") ? 1 : 0;
+        while (true) {
+            int end = template.indexOf('/', start);
+            segments.add(parseSegment(template.substring(start, end < 0 ? template.length() : end)));
+            if (end < 0) {
+                return segments;
+            }
+            start = end + 1;
+        }
+    }
+
+    private static List<Part> parseSegment(String segment) {
+        List<Part> parts = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int i = 0;
+        while (i < segment.length()) {
+            int close = segment.charAt(i) == '{' ? segment.indexOf('}', i) : -1;
+            if (close > i + 1) {
+                if (literal.length() > 0) {
+                    parts.add(new Part(literal.toString(), false));
+                    literal.setLength(0);
+                }
+                parts.add(new Part(segment.substring(i + 1, close), true));
+                i = close + 1;
+            } else {
+                literal.append(segment.charAt(i));
+                i++;
+            }
+        }
+        if (literal.length() > 0 || parts.isEmpty()) {
+            parts.add(new Part(literal.toString(), false));
+        }
+        return parts;
+    }
+
+    private static final class Part {
+        private final String value;
+        private final boolean variable;
+
+        private Part(String value, boolean variable) {
+            this.value = value;
+            this.variable = variable;
+        }
+    }
+
+    private static final class Node<T> {
+
+        private final Map<String, T> handlers = new HashMap<>();
+
+        // open addressing table, the lookup hash the path region directly: no substring allocation
+        private String[] staticKeys = new String[0];
+        private Node<T>[] staticNodes = newNodeArray(0);
+        private final Map<String, Node<T>> staticChildren = new HashMap<>();
+
+        private Part[][] patterns = new Part[0][];
+        private int[] patternVariables = new int[0];
+        private Node<T>[] patternNodes = newNodeArray(0);
+
+        private Node<T> variableChild;
+
+        private Node<T> catchAllChild;
+
+        private Node<T> staticChild(String segment) {
+            Node<T> child = staticChildren.get(segment);
+            if (child == null) {
+                child = new Node<>();
+                staticChildren.put(segment, child);
+                rebuildStaticTable();
+            }
+            return child;
+        }
+
+        private Node<T> patternChild(List<Part> segment) {
+            for (int i = 0; i < patterns.length; i++) {
+                if (samePattern(patterns[i], segment)) {
+                    return patternNodes[i];
+                }
+            }
+            int count = patterns.length;
+            Part[][] newPatterns = new Part[count + 1][];
+            int[] newPatternVariables = new int[count + 1];
+            Node<T>[] newPatternNodes = newNodeArray(count + 1);
+            System.arraycopy(patterns, 0, newPatterns, 0, count);
+            System.arraycopy(patternVariables, 0, newPatternVariables, 0, count);
+            System.arraycopy(patternNodes, 0, newPatternNodes, 0, count);
+            newPatterns[count] = segment.toArray(new Part[0]);
+            for (Part part : segment) {
+                newPatternVariables[count] += part.variable ? 1 : 0;
+            }
+            newPatternNodes[count] = new Node<>();
+            patterns = newPatterns;
+            patternVariables = newPatternVariables;
+            patternNodes = newPatternNodes;
+            return newPatternNodes[count];
+        }
+
+        private static boolean samePattern(Part[] parts, List<Part> segment) {
+            if (parts.length != segment.size()) {
+                return false;
+            }
+            for (int i = 0; i < parts.length; i++) {
+                // variable names are not part of the matching, only their position
+                Part other = segment.get(i);
+                if (parts[i].variable != other.variable || (!other.variable && !parts[i].value.equals(other.value))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void rebuildStaticTable() {
+            int capacity = Integer.highestOneBit(Math.max(1, staticChildren.size() * 2 - 1)) << 1;
+            String[] keys = new String[capacity];
+            Node<T>[] nodes = newNodeArray(capacity);
+            for (Map.Entry<String, Node<T>> entry : staticChildren.entrySet()) {
+                int idx = entry.getKey().hashCode() & (capacity - 1);
+                while (keys[idx] != null) {
+                    idx = (idx + 1) & (capacity - 1);
+                }
+                keys[idx] = entry.getKey();
+                nodes[idx] = entry.getValue();
+            }
+            staticKeys = keys;
+            staticNodes = nodes;
+        }
+
+        private Node<T> findStaticChild(String path, int start, int end) {
+            int capacity = staticKeys.length;
+            if (capacity == 0) {
+                return null;
+            }
+            // same hash as String.hashCode() computed on the region
+            int hash = 0;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + path.charAt(i);
+            }
+            int length = end - start;
+            for (int idx = hash & (capacity - 1); staticKeys[idx] != null; idx = (idx + 1) & (capacity - 1)) {
+                String key = staticKeys[idx];
+                if (key.length() == length && path.regionMatches(start, key, 0, length)) {
+                    return staticNodes[idx];
+                }
+            }
+            return null;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <T> Node<T>[] newNodeArray(int size) {
+            return (Node<T>[]) new Node<?>[size];
+        }
+    }
+}
@@ -15,21 +15,48 @@
  */
 package ch.digitalfondue.nihttpsuite;
 
+import org.apache.hc.core5.function.Supplier;
 import org.apache.hc.core5.http.*;
+import org.apache.hc.core5.http.impl.bootstrap.AsyncServerBootstrap;
+import org.apache.hc.core5.http.impl.bootstrap.HttpAsyncServer;
 import org.apache.hc.core5.http.impl.bootstrap.HttpServer;
 import org.apache.hc.core5.http.impl.bootstrap.ServerBootstrap;
 import org.apache.hc.core5.http.io.HttpRequestHandler;
 import org.apache.hc.core5.http.io.SocketConfig;
 import org.apache.hc.core5.http.io.entity.*;
+import org.apache.hc.core5.http.config.CharCodingConfig;
+import org.apache.hc.core5.http.config.Http1Config;
+import org.apache.hc.core5.http.impl.nio.ServerHttp1StreamDuplexerFactory;
+import org.apache.hc.core5.http.nio.AsyncServerExchangeHandler;
+import org.apache.hc.core5.http.nio.HandlerFactory;
+import org.apache.hc.core5.http.nio.support.BasicAsyncServerExpectationDecorator;
 import org.apache.hc.core5.http.protocol.*;
+import org.apache.hc.core5.http2.HttpVersionPolicy;
+import org.apache.hc.core5.http2.config.H2Config;
+import org.apache.hc.core5.http2.impl.nio.ServerH2StreamMultiplexerFactory;
+import org.apache.hc.core5.http2.impl.nio.ServerHttpProtocolNegotiatorFactory;
+import org.apache.hc.core5.http2.protocol.H2ResponseConnControl;
+import org.apache.hc.core5.http2.protocol.H2ResponseContent;
 import org.apache.hc.core5.io.CloseMode;
 import org.apache.hc.core5.net.URLEncodedUtils;
+import org.apache.hc.core5.reactor.IOReactorConfig;
+import org.apache.hc.core5.reactor.ListenerEndpoint;
 import org.apache.hc.core5.util.TimeValue;
 import org.apache.hc.core5.util.Timeout;
 
-import java.io.File;
-import java.io.IOException;
-import java.io.InputStream;
+import javax.json.Json;
+import javax.net.ServerSocketFactory;
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParserFactory;
+import javax.json.stream.JsonParsingException;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.StandardSocketOptions;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.URISyntaxException;
@@ -37,33 +64,99 @@ import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
+import java.time.Duration;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
-import java.util.stream.Collectors;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
 import java.util.stream.Stream;
 
 public final class Server {
 
     private final int port;
+    private final InetAddress address;
+    private final boolean async;
+    private final int ioThreads;
+    private final int workerThreads;
+    private final boolean virtualThreads;
+    private final int maxConcurrentRequests;
+    private final int maxRequestBodySize;
+    private final H2Config h2Config;
+    private final Compression compression;
+    private final Metrics metrics;
+    private final ConcurrencyLimiter limiter;
+    private final int listeners;
+    private final int backlog;
+    private final int sendBufferSize;
+    private final int receiveBufferSize;
+    private final int maxRequestsPerConnection;
+    private final Timeout idleTimeout;
+    private final ConnectionStats connectionStats;
+    private final ContextAttributes attributes;
+    private final AccessLog log;
+
+    private static final int ASYNC_BUFFER_SIZE = 16 * 1024;
+
+    private final RouteTree<HttpRouteHandler> routes = new RouteTree<>();
+
+    // set by listen()
+    private List<HttpServer> classicServers;
+    private HttpAsyncServer asyncServer;
+    private ExecutorService workers;
+
+    private Server(ServerBuilder builder) {
+        this.port = builder.port;
+        this.address = builder.address;
+        this.async = builder.async;
+        this.ioThreads = builder.ioThreads;
+        this.workerThreads = builder.workerThreads;
+        this.virtualThreads = builder.virtualThreads;
+        this.maxConcurrentRequests = builder.maxConcurrentRequests;
+        this.maxRequestBodySize = builder.maxRequestBodySize;
+        this.h2Config = builder.h2Config;
+        this.compression = builder.compression;
+        this.limiter = builder.limiter;
+        this.listeners = builder.listeners;
+        this.backlog = builder.backlog;
+        this.sendBufferSize = builder.sendBufferSize;
+        this.receiveBufferSize = builder.receiveBufferSize;
+        this.maxRequestsPerConnection = builder.maxRequestsPerConnection;
+        this.idleTimeout = builder.idleTimeout;
+        this.connectionStats = new ConnectionStats(builder.maxConnections);
+        this.attributes = builder.attributes.freeze();
+        this.log = new AccessLog(builder.accessLogFile, builder.accessLogOutput, builder.logCapacity);
+        this.metrics = builder.metricsPath == null ? null : new Metrics(limiter, connectionStats, log);
+        if (async && listeners > 1) {
+            throw new IllegalStateException("Multiple listeners require the classic server, the async server accepts the connections in a single reactor thread");
+        }
 
-    private final Map<String, Map<String, HttpRouteHandler>> staticRoutes = new HashMap<>();
-    private final List<HttpRouteHandler> pathVariableRoutes = new ArrayList<>();
-
-    private Server(int port, RouteBuilder routeBuilder) {
-        this.port = port;
-
+        List<HttpRouteHandler> routeHandlers = new ArrayList<>(builder.routeBuilder.routeHandlers);
+        if (metrics != null) {
+            HttpRouteHandler metricsRoute = new HttpRouteHandler("GET", builder.metricsPath, (req, res) -> res.ok().body(metrics.render(), "text/plain"));
+            routeHandlers.add(metricsRoute.withLimits(null, true));
+        }
+        List<Filter> globalFilters = List.copyOf(builder.filters);
+        for (HttpRouteHandler routeHandler : routeHandlers) {
+            Metrics.RouteMetrics routeMetrics = metrics == null ? null : metrics.register(routeHandler.httpMethod, routeHandler.path);
+            RequestHandler handler = chain(globalFilters, chain(routeHandler.filters, routeHandler.handler));
+            routes.add(routeHandler.httpMethod, routeHandler.path, new HttpRouteHandler(routeHandler, handler, routeMetrics));
+        }
+    }
 
-        for (HttpRouteHandler routeHandler : routeBuilder.routeHandlers) {
-            if (!routeHandler.isContainPathVariable()) {
-                if (! staticRoutes.containsKey(routeHandler.path)) {
-                    staticRoutes.put(routeHandler.path, new HashMap<>());
-                }
-                staticRoutes.get(routeHandler.path).put(routeHandler.httpMethod, routeHandler);
-            } else {
-                pathVariableRoutes.add(routeHandler);
-            }
+    // the global filters run first, then the route ones, in the registration order
+    private static RequestHandler chain(List<Filter> filters, RequestHandler handler) {
+        RequestHandler next = handler;
+        for (int i = filters.size() - 1; i >= 0; i--) {
+            Filter filter = filters.get(i);
+            RequestHandler then = next;
+            next = (req, res) -> filter.filter(req, res, then);
         }
+        return next;
     }
 
 
@@ -74,23 +167,406 @@ public final class Server {
     public static final class ServerBuilder {
 
         private int port = 8080;
+        private InetAddress address;
+        private boolean async;
+        private int ioThreads = Runtime.getRuntime().availableProcessors();
+        private int workerThreads = Math.max(8, Runtime.getRuntime().availableProcessors() * 4);
+        private boolean virtualThreads;
+        private int maxConcurrentRequests;
+        private int maxRequestBodySize = 10 * 1024 * 1024;
+        private H2Config h2Config;
+        private Compression compression;
+        private String metricsPath;
+        private ConcurrencyLimiter limiter;
+        private int listeners = 1;
+        private int backlog;
+        private int sendBufferSize;
+        private int receiveBufferSize;
+        private int maxConnections;
+        private int maxRequestsPerConnection;
+        private Timeout idleTimeout = Timeout.ofSeconds(30);
+        private final ContextAttributes attributes = new ContextAttributes();
+        private final List<Filter> filters = new ArrayList<>();
+        private Path accessLogFile;
+        private OutputStream accessLogOutput;
+        private int logCapacity = AccessLog.DEFAULT_CAPACITY;
 
         private final RouteBuilder routeBuilder = new RouteBuilder(this);
 
         private ServerBuilder() {
         }
 
+        /**
+         * Listening port. Default: 8080. With 0, a free port is selected: see {@link Server#listen()}.
+         *
+         * @param port port
+         * @return server builder
+         */
         public ServerBuilder listenerPort(int port) {
             this.port = port;
             return this;
         }
 
+        /**
+         * Local address to listen on, for example the loopback address. Default: all the local addresses.
+         *
+         * @param address local address
+         * @return server builder
+         */
+        public ServerBuilder listenerAddress(InetAddress address) {
+            this.address = address;
+            return this;
+        }
+
+        /**
+         * Open the given number of listeners on the same port, with SO_REUSEPORT: each one has its own accept thread
+         * and worker threads, and the kernel spreads the new connections between them. Helps when many short lived
+         * connections are opened on a machine with many cores. Default: 1.
+         *
+         * Only for the classic server, and on the systems supporting SO_REUSEPORT (Linux, macOS...).
+         *
+         * @param listeners number of listeners
+         * @return server builder
+         */
+        public ServerBuilder listeners(int listeners) {
+            if (listeners <= 0) {
+                throw new IllegalArgumentException("listeners must be positive");
+            }
+            if (listeners > 1 && !ReusePortServerSocketFactory.isSupported()) {
+                throw new IllegalStateException("SO_REUSEPORT is not supported on this system");
+            }
+            this.listeners = listeners;
+            return this;
+        }
+
+        /**
+         * Max number of pending connections, accepted by the system but not yet by the server.
+         * Default: 0, the system default.
+         *
+         * @param backlog listen backlog
+         * @return server builder
+         */
+        public ServerBuilder backlog(int backlog) {
+            this.backlog = backlog;
+            return this;
+        }
+
+        /**
+         * Size of the socket send and receive buffers of the accepted connections. Default: 0, the system default.
+         * Bigger buffers help the large responses on high latency links, at the cost of kernel memory by connection.
+         *
+         * @param sendBufferSize    SO_SNDBUF in bytes, 0 for the system default
+         * @param receiveBufferSize SO_RCVBUF in bytes, 0 for the system default
+         * @return server builder
+         */
+        public ServerBuilder socketBufferSizes(int sendBufferSize, int receiveBufferSize) {
+            this.sendBufferSize = sendBufferSize;
+            this.receiveBufferSize = receiveBufferSize;
+            return this;
+        }
+
+        /**
+         * Max number of open connections. The connections accepted over the limit are closed immediately.
+         * Default: 0, no limit. With the classic server, each open connection holds a thread.
+         *
+         * @param maxConnections max number of open connections, 0 for no limit
+         * @return server builder
+         */
+        public ServerBuilder maxConnections(int maxConnections) {
+            this.maxConnections = maxConnections;
+            return this;
+        }
+
+        /**
+         * Max number of requests on a HTTP/1.1 keep alive connection: the response to the last one has a
+         * "Connection: close" header. Spread the clients over the server instances behind a load balancer.
+         * The limit applies to HTTP/1.x only: HTTP/2 connections, where the requests are streams, are not limited.
+         * Default: 0, no limit.
+         *
+         * @param maxRequestsPerConnection max number of requests by connection, 0 for no limit
+         * @return server builder
+         */
+        public ServerBuilder maxRequestsPerConnection(int maxRequestsPerConnection) {
+            this.maxRequestsPerConnection = maxRequestsPerConnection;
+            return this;
+        }
+
+        /**
+         * Close the connections without activity during the given time: idle keep alive connections, and
+         * clients not sending their request. Default: 30 seconds.
+         *
+         * @param idleTimeout idle timeout
+         * @return server builder
+         */
+        public ServerBuilder idleTimeout(Duration idleTimeout) {
+            this.idleTimeout = Timeout.ofMilliseconds(idleTimeout.toMillis());
+            return this;
+        }
+
+        /**
+         * Use the non blocking I/O reactor instead of the classic blocking server: a connection
+         * hold a worker thread only while a request is being handled, not while idle in keep alive.
+         *
+         * @return server builder
+         */
+        public ServerBuilder async() {
+            this.async = true;
+            return this;
+        }
+
+        /**
+         * Number of I/O reactor threads, only used in async mode. Default: number of available processors.
+         *
+         * @param ioThreads number of I/O threads
+         * @return server builder
+         */
+        public ServerBuilder ioThreads(int ioThreads) {
+            this.ioThreads = ioThreads;
+            return this;
+        }
+
+        /**
+         * Number of worker threads executing the {@link RequestHandler}, only used in async mode.
+         * Default: 4 * number of available processors, minimum 8.
+         *
+         * @param workerThreads number of worker threads
+         * @return server builder
+         */
+        public ServerBuilder workerThreads(int workerThreads) {
+            this.workerThreads = workerThreads;
+            return this;
+        }
+
+        /**
+         * Execute each request in a new virtual thread, at most maxConcurrentRequests at the same time.
+         * Additional requests wait, without holding a platform thread, until a slot is free.
+         * Enable the async mode, as the classic server does not allow to customize its worker threads.
+         *
+         * Require java 21 or later.
+         *
+         * @param maxConcurrentRequests max number of requests handled at the same time
+         * @return server builder
+         */
+        public ServerBuilder virtualThreads(int maxConcurrentRequests) {
+            if (!VirtualThreads.isSupported()) {
+                throw new IllegalStateException("Virtual threads require java 21 or later, current version is " + Runtime.version());
+            }
+            if (maxConcurrentRequests <= 0) {
+                throw new IllegalArgumentException("maxConcurrentRequests must be positive");
+            }
+            this.async = true;
+            this.virtualThreads = true;
+            this.maxConcurrentRequests = maxConcurrentRequests;
+            return this;
+        }
+
+        /**
+         * Maximum size of a request body read in memory with {@link Request#getBodyAsBytes()}. Default: 10MB.
+         * Streamed bodies ({@link Request#getBodyAsInputStream()}) are not limited.
+         *
+         * @param maxRequestBodySize size in bytes
+         * @return server builder
+         */
+        public ServerBuilder maxRequestBodySize(int maxRequestBodySize) {
+            this.maxRequestBodySize = maxRequestBodySize;
+            return this;
+        }
+
+        /**
+         * Serve HTTP/2 with the default settings: 250 max concurrent streams per connection, 64KB flow control window.
+         * See {@link #http2(int, int)}.
+         *
+         * @return server builder
+         */
+        public ServerBuilder http2() {
+            return http2(H2Config.DEFAULT.getMaxConcurrentStreams(), H2Config.DEFAULT.getInitialWindowSize());
+        }
+
+        /**
+         * Serve HTTP/2 over cleartext connections, with prior knowledge: a connection starting with the HTTP/2
+         * preface is handled as HTTP/2, the others as HTTP/1.1. The routes are the same for both protocols.
+         * Enable the async mode.
+         *
+         * The HTTP/1.1 "Upgrade: h2c" header is ignored: the request is answered with HTTP/1.1.
+         *
+         * @param maxConcurrentStreams max number of concurrent streams (requests) on a connection
+         * @param initialWindowSize    flow control window in bytes, for each stream and for the connection
+         * @return server builder
+         */
+        public ServerBuilder http2(int maxConcurrentStreams, int initialWindowSize) {
+            this.async = true;
+            this.h2Config = H2Config.custom()
+                    .setMaxConcurrentStreams(maxConcurrentStreams)
+                    .setInitialWindowSize(initialWindowSize)
+                    .setPushEnabled(false)
+                    .build();
+            return this;
+        }
+
+        /**
+         * Enable gzip/deflate compression of the responses bigger than 1KB, for the common text content types
+         * (html, css, javascript, json, xml, svg...).
+         *
+         * @return server builder
+         */
+        public ServerBuilder compression() {
+            return compression(Compression.DEFAULT_MIN_SIZE, Compression.DEFAULT_CONTENT_TYPES);
+        }
+
+        /**
+         * Enable gzip/deflate compression, negotiated with the Accept-Encoding request header.
+         * Responses with a body set from a File or Path are compressed only once: a ".gz" file next
+         * to the original one is used if present, else the compressed content is cached in memory.
+         *
+         * @param minSize      minimum size in bytes of the response body, responses of unknown length are always compressed
+         * @param contentTypes content types to compress, for example "text/html", "application/json"
+         * @return server builder
+         */
+        public ServerBuilder compression(int minSize, String... contentTypes) {
+            this.compression = new Compression(minSize, contentTypes);
+            return this;
+        }
+
+        /**
+         * Record, for each route and for the requests without route, the number of requests by status class,
+         * the requests in flight and a latency histogram. The metrics are exposed in the Prometheus text format
+         * on a GET route with the given path.
+         *
+         * The latency is the time spent in the {@link RequestHandler}: a streamed body written after the handler
+         * returned is not included.
+         *
+         * @param path metrics route path, like "/metrics"
+         * @return server builder
+         */
+        public ServerBuilder metrics(String path) {
+            this.metricsPath = path;
+            return this;
+        }
+
+        /**
+         * Handle at most maxConcurrentRequests requests at the same time, on all the routes except the ones
+         * marked with {@link RouteBuilder#exemptFromConcurrencyLimit()} and the metrics route.
+         *
+         * The additional requests wait, at most maxQueueSize of them and for at most maxQueueTime. Once the queue
+         * is full, or when the wait time is over, the request is rejected with a 503 status and a
+         * "Retry-After: 1" header. The requests waiting in the queue hold their thread.
+         *
+         * @param maxConcurrentRequests max number of requests handled at the same time
+         * @param maxQueueSize          max number of waiting requests, 0 to reject immediately
+         * @param maxQueueTime          max wait time of a request in the queue
+         * @return server builder
+         */
+        public ServerBuilder concurrencyLimit(int maxConcurrentRequests, int maxQueueSize, Duration maxQueueTime) {
+            this.limiter = ConcurrencyLimiter.fixed(maxConcurrentRequests, maxQueueSize, maxQueueTime.toNanos());
+            return this;
+        }
+
+        /**
+         * Like {@link #concurrencyLimit(int, int, Duration)}, with a limit adapted to the latency of the requests.
+         *
+         * The limit starts at maxLimit. When the latency of the handled requests grows over 1.5 times its long
+         * term average (for example because a downstream service slows down), the limit is lowered, down to minLimit,
+         * and the additional requests are queued or rejected instead of slowing down every request. The limit grows
+         * again when the latency goes back to normal.
+         *
+         * @param minLimit     min number of requests handled at the same time
+         * @param maxLimit     max number of requests handled at the same time
+         * @param maxQueueSize max number of waiting requests, 0 to reject immediately
+         * @param maxQueueTime max wait time of a request in the queue
+         * @return server builder
+         */
+        public ServerBuilder adaptiveConcurrencyLimit(int minLimit, int maxLimit, int maxQueueSize, Duration maxQueueTime) {
+            this.limiter = ConcurrencyLimiter.adaptive(minLimit, maxLimit, maxQueueSize, maxQueueTime.toNanos());
+            return this;
+        }
+
+        /**
+         * Register a request attribute, see {@link Context}. Usually stored in a constant and shared by the
+         * wrappers and the handlers that read or set it.
+         *
+         * The attributes must be registered before {@link #build()}, and a key can only be used with this server.
+         *
+         * @param name attribute name, unique by server
+         * @param type value type
+         * @return attribute key
+         */
+        public <T> Context.Key<T> attribute(String name, Class<T> type) {
+            return attributes.register(name, type);
+        }
+
+        /**
+         * Like {@link #attribute(String, Class)}, for a long value stored without boxing.
+         *
+         * @param name attribute name, unique by server
+         * @return attribute key
+         */
+        public Context.LongKey longAttribute(String name) {
+            return attributes.registerLong(name);
+        }
+
+        /**
+         * Run the given filter on every route, the metrics one too, before the route filters.
+         * The filters run in the registration order. See {@link Filter}.
+         *
+         * @param filter filter
+         * @return server builder
+         */
+        public ServerBuilder filter(Filter filter) {
+            this.filters.add(Objects.requireNonNull(filter));
+            return this;
+        }
+
+        /**
+         * Append an access log to the given file: one json object by line, with the time, remote address, method,
+         * request target, status, body size and duration (the time spent in the {@link RequestHandler}) of each
+         * request. The errors of the handlers and of the connections are logged in the same file.
+         *
+         * The records are written by a background thread, in batches: see {@link #logBufferSize(int)}.
+         * Without access log, the errors are logged to System.err, in the same format.
+         *
+         * @param file log file, created if needed
+         * @return server builder
+         */
+        public ServerBuilder accessLog(Path file) {
+            this.accessLogFile = Objects.requireNonNull(file);
+            this.accessLogOutput = null;
+            return this;
+        }
+
+        /**
+         * Write the access log to the given stream, for example System.out. See {@link #accessLog(Path)}.
+         *
+         * @param out output stream, not closed by the server
+         * @return server builder
+         */
+        public ServerBuilder accessLog(OutputStream out) {
+            this.accessLogOutput = Objects.requireNonNull(out);
+            this.accessLogFile = null;
+            return this;
+        }
+
+        /**
+         * Max number of log records waiting to be written. When the writer thread does not keep up, the new records
+         * are dropped instead of slowing down the requests: a "dropped" record with their count is logged, and
+         * with {@link #metrics(String)} they are counted in nihttp_log_dropped_total. Default: 8192.
+         *
+         * @param records max number of waiting records, rounded up to a power of two
+         * @return server builder
+         */
+        public ServerBuilder logBufferSize(int records) {
+            if (records <= 0) {
+                throw new IllegalArgumentException("records must be positive");
+            }
+            this.logCapacity = records;
+            return this;
+        }
+
         public RouteBuilder route() {
             return routeBuilder;
         }
 
         public Server build() {
-            return new Server(port, routeBuilder);
+            return new Server(this);
         }
     }
 
@@ -98,6 +574,8 @@ public final class Server {
         private final ServerBuilder serverBuilder;
 
         private final List<HttpRouteHandler> routeHandlers = new ArrayList<>();
+        // first route registered by the last get/post/.../staticDirectory call
+        private int lastRouteStart;
 
         private RouteBuilder(ServerBuilder serverBuilder) {
             this.serverBuilder = serverBuilder;
@@ -124,10 +602,201 @@ public final class Server {
         }
 
         public RouteBuilder method(String httpMethod, String path, RequestHandler handler) {
+            lastRouteStart = routeHandlers.size();
             routeHandlers.add(new HttpRouteHandler(httpMethod, path, handler));
             return this;
         }
 
+        /**
+         * Serve a prebuilt response for GET and HEAD requests, without calling any handler: for health checks,
+         * robots.txt or fixed documents. See {@link PrebuiltResponse}.
+         *
+         * <pre>
+         * .prebuilt("/health", PrebuiltResponse.of(200, "ok", "text/plain").header("Cache-Control", "no-store"))
+         * </pre>
+         *
+         * @param path     path
+         * @param response response
+         * @return route builder
+         */
+        public RouteBuilder prebuilt(String path, PrebuiltResponse response) {
+            int start = routeHandlers.size();
+            method("GET", path, response).method("HEAD", path, response);
+            lastRouteStart = start;
+            return this;
+        }
+
+        /**
+         * Serve the files of a directory under the given url prefix, for GET and HEAD requests.
+         *
+         * The responses have an ETag and a Last-Modified header, conditional and single byte range requests are
+         * supported. Files up to 64KB are kept in memory (32MB max), the cache entries are invalidated when the
+         * file modification time or size change.
+         *
+         * @param urlPrefix url prefix, like "/static"
+         * @param directory directory to serve
+         * @return route builder
+         */
+        public RouteBuilder staticDirectory(String urlPrefix, Path directory) {
+            return staticDirectory(urlPrefix, directory, StaticFiles.DEFAULT_MAX_CACHED_FILE_SIZE, StaticFiles.DEFAULT_CACHE_SIZE);
+        }
+
+        /**
+         * Serve the files of a directory under the given url prefix, see {@link #staticDirectory(String, Path)}.
+         *
+         * @param urlPrefix         url prefix, like "/static"
+         * @param directory         directory to serve
+         * @param maxCachedFileSize max size in bytes of a file kept in memory, 0 to disable the cache
+         * @param cacheSize         max size in bytes of the in memory cache
+         * @return route builder
+         */
+        public RouteBuilder staticDirectory(String urlPrefix, Path directory, long maxCachedFileSize, long cacheSize) {
+            String prefix = urlPrefix.endsWith("/") ? urlPrefix.substring(0, urlPrefix.length() - 1) : urlPrefix;
+            String template = prefix + "/{*" + StaticFiles.PATH_VARIABLE + "}";
+            StaticFiles handler = new StaticFiles(directory, maxCachedFileSize, cacheSize);
+            int start = routeHandlers.size();
+            method("GET", template, handler).method("HEAD", template, handler);
+            lastRouteStart = start;
+            return this;
+        }
+
+        /**
+         * Cache the responses of the last registered GET or HEAD route, keyed by the request path.
+         * See {@link #cache(Duration, long, List, List)}.
+         *
+         * @param ttl time to live of a cached response
+         * @return route builder
+         */
+        public RouteBuilder cache(Duration ttl) {
+            return cache(ttl, ResponseCache.DEFAULT_MAX_SIZE, List.of(), List.of());
+        }
+
+        /**
+         * Cache the responses of the last registered GET or HEAD route.
+         *
+         * The cache key is the request path (so the path variables too) and the values of the given query parameters
+         * and headers. The status, headers and body are kept in memory for the given time to live, the least recently
+         * used entries are evicted when the cache is bigger than maxSize. Concurrent requests with the same key
+         * while the response is not yet cached run the handler only once.
+         *
+         * The 2xx (except 206), 301, 404 and 410 responses are cached, unless they have a Set-Cookie header or a
+         * Cache-Control header with "private" or "no-store". The response body is read in memory.
+         *
+         * <pre>
+         * .get("/report/{id}", handler).cache(Duration.ofSeconds(5), 8 * 1024 * 1024, List.of("format"), List.of("Accept-Language"))
+         * </pre>
+         *
+         * @param ttl             time to live of a cached response
+         * @param maxSize         max size in bytes of the cache
+         * @param queryParameters query parameters names part of the cache key
+         * @param headers         header names part of the cache key
+         * @return route builder
+         */
+        public RouteBuilder cache(Duration ttl, long maxSize, List<String> queryParameters, List<String> headers) {
+            if (lastRouteStart == routeHandlers.size()) {
+                throw new IllegalStateException("No route to cache: cache must be called after get(...)");
+            }
+            long ttlNanos = ttl.toNanos();
+            Map<RequestHandler, RequestHandler> cached = new IdentityHashMap<>();
+            for (int i = lastRouteStart; i < routeHandlers.size(); i++) {
+                HttpRouteHandler route = routeHandlers.get(i);
+                if (!"GET".equals(route.httpMethod) && !"HEAD".equals(route.httpMethod)) {
+                    throw new IllegalStateException("Only GET and HEAD routes can be cached, route " + route.httpMethod + " " + route.path);
+                }
+                // routes sharing a handler share the cache
+                RequestHandler handler = cached.computeIfAbsent(route.handler, h -> new ResponseCache(h, ttlNanos, maxSize, queryParameters, headers));
+                routeHandlers.set(i, route.withHandler(handler));
+            }
+            return this;
+        }
+
+        /**
+         * Handle at most maxConcurrentRequests requests at the same time on the last registered route.
+         * The additional requests are rejected immediately with a 503 status and a "Retry-After: 1" header.
+         *
+         * The limit is checked before the server wide one, see {@link ServerBuilder#concurrencyLimit(int, int, Duration)}.
+         *
+         * @param maxConcurrentRequests max number of requests handled at the same time
+         * @return route builder
+         */
+        public RouteBuilder concurrencyLimit(int maxConcurrentRequests) {
+            ConcurrencyLimiter routeLimiter = ConcurrencyLimiter.fixed(maxConcurrentRequests, 0, 0);
+            return updateLastRoutes("concurrencyLimit", route -> route.withLimits(routeLimiter, route.exemptFromLimit));
+        }
+
+        /**
+         * Exclude the last registered route from the server wide concurrency limit, for example for a cheap health
+         * check route that must stay responsive when the other routes are overloaded.
+         *
+         * @return route builder
+         */
+        public RouteBuilder exemptFromConcurrencyLimit() {
+            return updateLastRoutes("exemptFromConcurrencyLimit", route -> route.withLimits(route.limiter, true));
+        }
+
+        /**
+         * Limit the requests of each client on the last registered route, see {@link #rateLimit(int, Duration, String, int)}.
+         * The client is identified by its remote address.
+         *
+         * @param permits max number of requests in a burst
+         * @param period  time to regain all the permits
+         * @return route builder
+         */
+        public RouteBuilder rateLimit(int permits, Duration period) {
+            return rateLimit(permits, period, null, RateLimiter.DEFAULT_MAX_KEYS);
+        }
+
+        /**
+         * Limit the requests of each client on the last registered route, with a token bucket: a client can do
+         * permits requests in a burst, then permits requests by period. The requests over the limit are rejected
+         * with a 429 status, with the "RateLimit-Limit", "RateLimit-Remaining", "RateLimit-Reset" and "Retry-After"
+         * headers (in seconds). The check is done before the concurrency limits and the {@link RequestHandler}.
+         *
+         * The client is identified by the value of the given header, for example an api key or "X-Forwarded-For"
+         * behind a proxy, or by its remote address when the header is missing. At most maxKeys clients are tracked,
+         * the idle ones are dropped first.
+         *
+         * <pre>
+         * .post("/login", handler).rateLimit(5, Duration.ofMinutes(1), null, 10_000)
+         * </pre>
+         *
+         * @param permits max number of requests in a burst
+         * @param period  time to regain all the permits
+         * @param header  header identifying the client, null to use the remote address
+         * @param maxKeys max number of tracked clients
+         * @return route builder
+         */
+        public RouteBuilder rateLimit(int permits, Duration period, String header, int maxKeys) {
+            RateLimiter rateLimiter = new RateLimiter(permits, period.toNanos(), header, maxKeys);
+            return updateLastRoutes("rateLimit", route -> route.withRateLimiter(rateLimiter));
+        }
+
+        /**
+         * Run the given filter on the last registered route, after the server wide filters. The filters run in the
+         * registration order, and always before the response cache of the route. See {@link Filter}.
+         *
+         * <pre>
+         * .get("/admin", handler).filter(requireAdmin).filter(noStore)
+         * </pre>
+         *
+         * @param filter filter
+         * @return route builder
+         */
+        public RouteBuilder filter(Filter filter) {
+            Objects.requireNonNull(filter);
+            return updateLastRoutes("filter", route -> route.withFilter(filter));
+        }
+
+        private RouteBuilder updateLastRoutes(String name, UnaryOperator<HttpRouteHandler> update) {
+            if (lastRouteStart == routeHandlers.size()) {
+                throw new IllegalStateException("No route: " + name + " must be called after get(...)");
+            }
+            for (int i = lastRouteStart; i < routeHandlers.size(); i++) {
+                routeHandlers.set(i, update.apply(routeHandlers.get(i)));
+            }
+            return this;
+        }
+
         public ServerBuilder end() {
             return serverBuilder;
         }
@@ -137,111 +806,291 @@ public final class Server {
         }
     }
 
-    private static final Pattern PATH_VARIABLE_PATTERN = Pattern.compile(".*\\{[^/}]+\\}.*");
-    private static final Pattern PATH_VARIABLE_REPLACE = Pattern.compile("\\{([^/}]+)\\}");
-
     private static final class HttpRouteHandler {
         private final String httpMethod;
         private final String path;
         private final RequestHandler handler;
-        private final boolean containPathVariable;
-        private final Pattern routeMatcher;
+        private final String[] variableNames;
+        private final ConcurrencyLimiter limiter;
+        private final boolean exemptFromLimit;
+        private final RateLimiter rateLimiter;
+        // composed with the handler when the server is built
+        private final List<Filter> filters;
+        private final Metrics.RouteMetrics metrics;
 
         private HttpRouteHandler(String httpMethod, String path, RequestHandler handler) {
+            this(httpMethod, path, handler, null, false, null, List.of());
+        }
+
+        private HttpRouteHandler(String httpMethod, String path, RequestHandler handler, ConcurrencyLimiter limiter, boolean exemptFromLimit, RateLimiter rateLimiter, List<Filter> filters) {
             this.httpMethod = httpMethod;
             this.path = path;
             this.handler = handler;
-            this.containPathVariable = PATH_VARIABLE_PATTERN.matcher(path).matches();
-            this.routeMatcher = containPathVariable ? Pattern.compile("^" + PATH_VARIABLE_REPLACE.matcher(path).replaceAll("(?<$1>\\[^/]+\\)") + "$") : null;
+            this.variableNames = RouteTree.variableNames(path);
+            this.limiter = limiter;
+            this.exemptFromLimit = exemptFromLimit;
+            this.rateLimiter = rateLimiter;
+            this.filters = filters;
+            this.metrics = null;
         }
 
-        boolean isContainPathVariable() {
-            return containPathVariable;
+        private HttpRouteHandler(HttpRouteHandler route, RequestHandler handler, Metrics.RouteMetrics metrics) {
+            this.httpMethod = route.httpMethod;
+            this.path = route.path;
+            this.handler = handler;
+            this.variableNames = route.variableNames;
+            this.limiter = route.limiter;
+            this.exemptFromLimit = route.exemptFromLimit;
+            this.rateLimiter = route.rateLimiter;
+            this.filters = List.of();
+            this.metrics = metrics;
         }
 
-        public Matcher match(String requestPath) {
-            var matcher = routeMatcher.matcher(requestPath);
-            if (matcher.find()) {
-                return matcher;
-            } else {
-                return null;
+        private HttpRouteHandler withHandler(RequestHandler handler) {
+            return new HttpRouteHandler(httpMethod, path, handler, limiter, exemptFromLimit, rateLimiter, filters);
+        }
+
+        private HttpRouteHandler withLimits(ConcurrencyLimiter limiter, boolean exemptFromLimit) {
+            return new HttpRouteHandler(httpMethod, path, handler, limiter, exemptFromLimit, rateLimiter, filters);
+        }
+
+        private HttpRouteHandler withRateLimiter(RateLimiter rateLimiter) {
+            return new HttpRouteHandler(httpMethod, path, handler, limiter, exemptFromLimit, rateLimiter, filters);
+        }
+
+        private HttpRouteHandler withFilter(Filter filter) {
+            List<Filter> updated = new ArrayList<>(filters);
+            updated.add(filter);
+            return new HttpRouteHandler(httpMethod, path, handler, limiter, exemptFromLimit, rateLimiter, List.copyOf(updated));
+        }
+    }
+
+    private void serve(ClassicHttpRequest request, ClassicHttpResponse response, HttpContext context) {
+        if (log.accessEnabled()) {
+            long start = System.nanoTime();
+            dispatch(request, response, context);
+            log.access(request, response, context, System.nanoTime() - start);
+        } else {
+            dispatch(request, response, context);
+        }
+        // on HTTP/2 the request count is the stream count and the header cannot close the connection
+        if (maxRequestsPerConnection > 0 && !context.getProtocolVersion().greaterEquals(HttpVersion.HTTP_2)) {
+            Object endpoint = context.getAttribute(HttpCoreContext.CONNECTION_ENDPOINT);
+            if (endpoint instanceof EndpointDetails && ((EndpointDetails) endpoint).getRequestCount() >= maxRequestsPerConnection) {
+                response.setHeader(HttpHeaders.CONNECTION, HeaderElements.CLOSE);
             }
         }
     }
 
-    private void dispatch(ClassicHttpRequest request, ClassicHttpResponse response, HttpContext context) {
-        String requestPath = "/";
-        String rawQuery = "";
-        try {
-            var uri = request.getUri();
-            requestPath = uri.getPath();
-            rawQuery = uri.getRawQuery();
-        } catch (URISyntaxException e) {
-            //
+    void dispatch(ClassicHttpRequest request, ClassicHttpResponse response, HttpContext context) {
+        // split the request target directly, a URI is built only when the path must be decoded
+        String target = request.getPath();
+        int queryIdx = target == null ? -1 : target.indexOf('?');
+        String requestPath = queryIdx < 0 ? target : target.substring(0, queryIdx);
+        String rawQuery = queryIdx < 0 ? null : target.substring(queryIdx + 1);
+        if (requestPath == null || !requestPath.startsWith("/") || requestPath.indexOf('%') >= 0) {
+            try {
+                var uri = request.getUri();
+                requestPath = uri.getPath();
+                rawQuery = uri.getRawQuery();
+            } catch (URISyntaxException e) {
+                requestPath = "/";
+                rawQuery = null;
+            }
+        }
+        long start = metrics == null ? 0 : System.nanoTime();
+        int capturesSize = routes.capturesSize();
+        int[] captures = capturesSize == 0 ? null : new int[capturesSize];
+        HttpRouteHandler handler = routes.find(request.getMethod(), requestPath, captures);
+        if (handler == null) {
+            response.setCode(HttpStatus.SC_NOT_FOUND);
+            response.setEntity(NOT_FOUND_BODY);
+            if (metrics != null) {
+                metrics.notFound.record(HttpStatus.SC_NOT_FOUND, System.nanoTime() - start);
+            }
+            return;
         }
-        String method = request.getMethod();
+
+        Metrics.RouteMetrics routeMetrics = handler.metrics;
+        if (routeMetrics == null) {
+            admit(handler, request, response, context, requestPath, rawQuery, captures);
+            return;
+        }
+        routeMetrics.begin();
         try {
-            if (staticRoutes.containsKey(requestPath) && staticRoutes.get(requestPath).containsKey(method)) {
-                staticRoutes.get(requestPath).get(method).handler.handle(new RequestWrapper(request, requestPath, rawQuery, context, null), new ResponseWrapper(response));
+            admit(handler, request, response, context, requestPath, rawQuery, captures);
+        } finally {
+            routeMetrics.end(response.getCode(), System.nanoTime() - start);
+        }
+    }
+
+    private void admit(HttpRouteHandler handler, ClassicHttpRequest request, ClassicHttpResponse response, HttpContext context,
+                       String requestPath, String rawQuery, int[] captures) {
+        RateLimiter rateLimiter = handler.rateLimiter;
+        if (rateLimiter != null) {
+            long waitNanos = rateLimiter.acquire(rateLimiter.key(request, context));
+            if (waitNanos > 0) {
+                tooManyRequests(response, rateLimiter.permits(), waitNanos);
                 return;
+            }
+        }
+        ConcurrencyLimiter routeLimiter = handler.limiter;
+        ConcurrencyLimiter globalLimiter = handler.exemptFromLimit ? null : limiter;
+        if (routeLimiter == null && globalLimiter == null) {
+            handle(handler, request, response, context, requestPath, rawQuery, captures);
+            return;
+        }
+        // the route limit does not queue: check it first, to not hold a global slot for a rejected request
+        if (routeLimiter != null && !routeLimiter.acquire()) {
+            serviceUnavailable(response);
+            return;
+        }
+        try {
+            if (globalLimiter == null) {
+                handle(handler, request, response, context, requestPath, rawQuery, captures);
+            } else if (!globalLimiter.acquire()) {
+                serviceUnavailable(response);
             } else {
-                for (var handler : pathVariableRoutes) {
-                    Matcher matcher = handler.match(requestPath);
-                    if (matcher != null) {
-                        handler.handler.handle(new RequestWrapper(request, requestPath, rawQuery, context, matcher), new ResponseWrapper(response));
-                        return;
-                    }
+                long start = System.nanoTime();
+                try {
+                    handle(handler, request, response, context, requestPath, rawQuery, captures);
+                } finally {
+                    globalLimiter.release(System.nanoTime() - start);
                 }
             }
+        } finally {
+            if (routeLimiter != null) {
+                routeLimiter.release(0);
+            }
+        }
+    }
+
+    private static void tooManyRequests(ClassicHttpResponse response, int permits, long waitNanos) {
+        String retryAfter = Long.toString((waitNanos + 999_999_999L) / 1_000_000_000L);
+        response.setCode(HttpStatus.SC_TOO_MANY_REQUESTS);
+        response.setHeader("RateLimit-Limit", Integer.toString(permits));
+        response.setHeader("RateLimit-Remaining", "0");
+        response.setHeader("RateLimit-Reset", retryAfter);
+        response.setHeader(HttpHeaders.RETRY_AFTER, retryAfter);
+        response.setEntity(TOO_MANY_REQUESTS_BODY);
+    }
+
+    private static void serviceUnavailable(ClassicHttpResponse response) {
+        response.setCode(HttpStatus.SC_SERVICE_UNAVAILABLE);
+        response.setHeader(HttpHeaders.RETRY_AFTER, "1");
+        response.setEntity(SERVICE_UNAVAILABLE_BODY);
+    }
+
+    // bodies of the built-in error responses, shared by all the requests
+    private static final HttpEntity NOT_FOUND_BODY = errorBody("404 not found");
+    private static final HttpEntity PAYLOAD_TOO_LARGE_BODY = errorBody("413 payload too large");
+    private static final HttpEntity TOO_MANY_REQUESTS_BODY = errorBody("429 too many requests");
+    private static final HttpEntity SERVER_ERROR_BODY = errorBody("500 server error");
+    private static final HttpEntity SERVICE_UNAVAILABLE_BODY = errorBody("503 service unavailable");
+
+    private static HttpEntity errorBody(String text) {
+        return new PrebuiltResponse.Entity(text.getBytes(StandardCharsets.ISO_8859_1), ContentType.TEXT_HTML);
+    }
+
+    private void handle(HttpRouteHandler handler, ClassicHttpRequest request, ClassicHttpResponse response, HttpContext context,
+                        String requestPath, String rawQuery, int[] captures) {
+        if (handler.handler instanceof PrebuiltResponse) {
+            // no handler call, nor request and response wrappers
+            ((PrebuiltResponse) handler.handler).writeTo(request, response);
+            return;
+        }
+        try {
+            ResponseWrapper responseWrapper = new ResponseWrapper(response, log);
+            handler.handler.handle(new RequestWrapper(request, requestPath, rawQuery, context, handler.variableNames, captures, maxRequestBodySize, attributes), responseWrapper);
+            if (response.getEntity() instanceof ResponseWriter.Body) {
+                // the last writes are staged in an array of this thread
+                ((ResponseWriter.Body) response.getEntity()).complete();
+            }
+            if (compression != null) {
+                compression.apply(request, response, responseWrapper.bodyFile);
+            }
+            if (Method.HEAD.isSame(request.getMethod())) {
+                discardEntity(response);
+            }
+        } catch (PayloadTooLargeException e) {
+            discardEntity(response);
+            response.setCode(HttpStatus.SC_REQUEST_TOO_LONG);
+            response.setHeader(HttpHeaders.CONNECTION, HeaderElements.CLOSE);
+            response.setEntity(PAYLOAD_TOO_LARGE_BODY);
+            // avoid reading the remaining body, the connection will be closed
+            request.setEntity(null);
         } catch (Exception e) {
+            discardEntity(response);
             response.setCode(HttpStatus.SC_SERVER_ERROR);
-            response.setEntity(new StringEntity("500 server error", ContentType.TEXT_HTML));
-            e.printStackTrace(System.err);
-            return;
+            response.setEntity(SERVER_ERROR_BODY);
+            log.error(request, e);
         }
-
-        response.setCode(HttpStatus.SC_NOT_FOUND);
-        response.setEntity(new StringEntity("404 not found", ContentType.TEXT_HTML));
     }
 
     private static class RequestWrapper implements Request {
         private final ClassicHttpRequest request;
-        private final Context context;
+        private final HttpContext httpContext;
         private final String path;
-        private final Map<String, List<String>> queryParams = new HashMap<>();
-        private final Matcher matcher;
-
-        private RequestWrapper(ClassicHttpRequest request, String path, String rawQuery, HttpContext context, Matcher matcher) {
-            this.context = new ContextWrapper(context);
+        private final String rawQuery;
+        private final String[] variableNames;
+        private final int[] captures;
+        private final int maxBodySize;
+        private final ContextAttributes attributes;
+        // lazily created on first access
+        private Context context;
+        private Map<String, List<String>> queryParams;
+        private byte[] body;
+
+        private RequestWrapper(ClassicHttpRequest request, String path, String rawQuery, HttpContext httpContext, String[] variableNames, int[] captures, int maxBodySize, ContextAttributes attributes) {
             this.request = request;
+            this.httpContext = httpContext;
             this.path = path;
-            for (var qp : URLEncodedUtils.parse(rawQuery, StandardCharsets.UTF_8)) {
-                var name = qp.getName();
-                if (!queryParams.containsKey(name)) {
-                    queryParams.put(name, new ArrayList<>());
-                }
-                queryParams.get(name).add(qp.getValue());
-            }
-            this.matcher = matcher;
+            this.rawQuery = rawQuery;
+            this.variableNames = variableNames;
+            this.captures = captures;
+            this.maxBodySize = maxBodySize;
+            this.attributes = attributes;
         }
 
         public List<String> getHeaderNames() {
-            return Stream.of(request.getHeaders()).map(Header::getName).collect(Collectors.toUnmodifiableList());
+            Header[] headers = request.getHeaders();
+            String[] names = new String[headers.length];
+            for (int i = 0; i < headers.length; i++) {
+                names[i] = headers[i].getName();
+            }
+            return Collections.unmodifiableList(Arrays.asList(names));
         }
 
         @Override
         public Context context() {
+            if (context == null) {
+                context = attributes.newContext();
+            }
             return context;
         }
 
         @Override
         public List<String> getHeaders(String name) {
-            return Stream.of(request.getHeaders(name)).map(Header::getValue).collect(Collectors.toUnmodifiableList());
+            Iterator<Header> it = request.headerIterator(name);
+            if (!it.hasNext()) {
+                return List.of();
+            }
+            String first = it.next().getValue();
+            if (!it.hasNext()) {
+                return List.of(first);
+            }
+            List<String> values = new ArrayList<>(2);
+            values.add(first);
+            while (it.hasNext()) {
+                values.add(it.next().getValue());
+            }
+            return Collections.unmodifiableList(values);
         }
 
         @Override
         public Optional<String> getHeader(String name) {
-            return Stream.of(request.getHeaders(name)).map(Header::getValue).findFirst();
+            Header header = request.getFirstHeader(name);
+            return header == null ? Optional.empty() : Optional.ofNullable(header.getValue());
         }
 
         @Override
@@ -251,25 +1100,189 @@ public final class Server {
 
         @Override
         public List<String> getQueryParameters(String name) {
-            return Collections.unmodifiableList(queryParams.getOrDefault(name, List.of()));
+            if (rawQuery == null || rawQuery.isEmpty()) {
+                return List.of();
+            }
+            if (queryParams == null) {
+                queryParams = parseQuery(rawQuery);
+            }
+            return queryParams.getOrDefault(name, List.of());
         }
 
         @Override
         public Optional<String> getQueryParameter(String name) {
-            return getQueryParameters(name).stream().findFirst();
+            List<String> values = getQueryParameters(name);
+            return values.isEmpty() ? Optional.empty() : Optional.ofNullable(values.get(0));
+        }
+
+        private static Map<String, List<String>> parseQuery(String rawQuery) {
+            Map<String, List<String>> params = new HashMap<>();
+            if (needDecoding(rawQuery)) {
+                for (var qp : URLEncodedUtils.parse(rawQuery, StandardCharsets.UTF_8)) {
+                    params.computeIfAbsent(qp.getName(), k -> new ArrayList<>(1)).add(qp.getValue());
+                }
+            } else {
+                // nothing to decode: same result as URLEncodedUtils without the intermediate objects
+                int start = 0;
+                int length = rawQuery.length();
+                while (start < length) {
+                    int end = start;
+                    int eq = -1;
+                    while (end < length && rawQuery.charAt(end) != '&' && rawQuery.charAt(end) != ';') {
+                        if (eq < 0 && rawQuery.charAt(end) == '=') {
+                            eq = end;
+                        }
+                        end++;
+                    }
+                    String name = rawQuery.substring(start, eq < 0 ? end : eq);
+                    if (!name.isEmpty()) {
+                        params.computeIfAbsent(name, k -> new ArrayList<>(1)).add(eq < 0 ? null : rawQuery.substring(eq + 1, end));
+                    }
+                    start = end + 1;
+                }
+            }
+            params.replaceAll((k, v) -> Collections.unmodifiableList(v));
+            return params;
+        }
+
+        private static boolean needDecoding(String rawQuery) {
+            for (int i = 0; i < rawQuery.length(); i++) {
+                char c = rawQuery.charAt(i);
+                if (c == '%' || c == '+' || Character.isWhitespace(c)) {
+                    return true;
+                }
+            }
+            return false;
         }
 
         @Override
         public String getPathVariable(String name) {
-            return matcher == null ? null : matcher.group(name);
+            for (int i = 0; i < variableNames.length; i++) {
+                if (variableNames[i].equals(name)) {
+                    return path.substring(captures[i * 2], captures[i * 2 + 1]);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public InputStream getBodyAsInputStream() throws IOException {
+            if (body != null) {
+                return new ByteArrayInputStream(body);
+            }
+            HttpEntity entity = request.getEntity();
+            return entity == null ? InputStream.nullInputStream() : entity.getContent();
+        }
+
+        @Override
+        public byte[] getBodyAsBytes() throws IOException {
+            return getBodyAsBytes(maxBodySize);
+        }
+
+        @Override
+        public byte[] getBodyAsBytes(int maxSize) throws IOException {
+            if (body != null) {
+                if (body.length > maxSize) {
+                    throw new PayloadTooLargeException(maxSize);
+                }
+                return body;
+            }
+            HttpEntity entity = request.getEntity();
+            if (entity == null) {
+                body = new byte[0];
+                return body;
+            }
+            // reject early when the declared length is already too big
+            if (entity.getContentLength() > maxSize) {
+                throw new PayloadTooLargeException(maxSize);
+            }
+            byte[] content = entity.getContent().readNBytes(maxSize == Integer.MAX_VALUE ? maxSize : maxSize + 1);
+            if (content.length > maxSize) {
+                throw new PayloadTooLargeException(maxSize);
+            }
+            body = content;
+            return body;
+        }
+
+        @Override
+        public void discardBody() throws IOException {
+            EntityUtils.consume(request.getEntity());
+        }
+
+        @Override
+        public JsonParser getBodyAsJsonParser() throws IOException {
+            return JSON_PARSER_FACTORY.createParser(getBodyAsInputStream());
+        }
+
+        @Override
+        public Stream<JsonValue> getBodyAsJsonArrayStream() throws IOException {
+            JsonParser parser = getBodyAsJsonParser();
+            try {
+                if (!parser.hasNext() || parser.next() != JsonParser.Event.START_ARRAY) {
+                    throw new JsonParsingException("Expected a json array", parser.getLocation());
+                }
+            } catch (RuntimeException e) {
+                parser.close();
+                throw e;
+            }
+            return parser.getArrayStream().onClose(parser::close);
         }
     }
 
-    private static class ResponseWrapper implements Response {
+    static final class ResponseWrapper implements Response {
         private final ClassicHttpResponse response;
+        // file used as body, the compressed content can be cached
+        private Path bodyFile;
+        // errors of the stream callbacks, null without server
+        private final AccessLog log;
+
+        ResponseWrapper(ClassicHttpResponse response) {
+            this(response, null);
+        }
 
-        private ResponseWrapper(ClassicHttpResponse response) {
+        ResponseWrapper(ClassicHttpResponse response, AccessLog log) {
             this.response = response;
+            this.log = log;
+        }
+
+        /**
+         * @return the log of a response of the server, null for a response decorated by a {@link Filter}
+         */
+        static AccessLog log(Response res) {
+            return res instanceof ResponseWrapper ? ((ResponseWrapper) res).log : null;
+        }
+
+        void entity(HttpEntity entity, Path file) {
+            discardEntity(response);
+            response.setEntity(entity);
+            bodyFile = file;
+        }
+
+        /**
+         * Set the entity of a response of the server. A response decorated by a {@link Filter} only has the public
+         * methods: the body is then given as a file or as a stream of the entity length.
+         *
+         * @param res    response given to the handler
+         * @param entity entity, null for no body
+         * @param file   file with the same content as the entity, or null
+         */
+        static void entity(Response res, HttpEntity entity, Path file) throws IOException {
+            if (res instanceof ResponseWrapper) {
+                ((ResponseWrapper) res).entity(entity, file);
+                return;
+            }
+            if (entity == null) {
+                return;
+            }
+            ContentType type = entity.getContentType() == null ? ContentType.APPLICATION_OCTET_STREAM : ContentType.parse(entity.getContentType());
+            if (entity.getContentEncoding() != null) {
+                res.header(HttpHeaders.CONTENT_ENCODING, entity.getContentEncoding());
+            }
+            if (file != null) {
+                res.body(file, type.getMimeType(), type.getCharset());
+            } else {
+                res.body(entity.getContent(), entity.getContentLength(), type.getMimeType(), type.getCharset());
+            }
         }
 
 
@@ -293,90 +1306,414 @@ public final class Server {
 
         @Override
         public Response body(String body, String contentType, Charset charset) {
-            response.setEntity(new StringEntity(body, ContentType.create(contentType, charset)));
+            entity(new StringEntity(body, ContentType.create(contentType, charset)), null);
+            return this;
+        }
+
+        @Override
+        public Response json(Consumer<JsonGenerator> writer) {
+            entity(new JsonGeneratorEntity(writer), null);
             return this;
         }
 
         @Override
         public Response body(File file, String contentType, Charset charset) {
-            response.setEntity(new FileEntity(file, ContentType.create(contentType, charset)));
+            entity(new FileEntity(file, ContentType.create(contentType, charset)), file.toPath());
             return this;
         }
 
         @Override
         public Response body(Path path, String contentType, Charset charset) {
-            response.setEntity(new PathEntity(path, ContentType.create(contentType, charset)));
+            entity(new PathEntity(path, ContentType.create(contentType, charset)), path);
             return this;
         }
 
         @Override
         public Response body(InputStream inputStream, String contentType, Charset charset) {
-            response.setEntity(new InputStreamEntity(inputStream, ContentType.create(contentType, charset)));
+            entity(new InputStreamEntity(inputStream, ContentType.create(contentType, charset)), null);
+            return this;
+        }
+
+        @Override
+        public Response body(InputStream inputStream, long contentLength, String contentType, Charset charset) {
+            entity(new InputStreamEntity(inputStream, contentLength, ContentType.create(contentType, charset)), null);
             return this;
         }
 
         @Override
         public Response body(byte[] body, String contentType, Charset charset) {
-            response.setEntity(new ByteArrayEntity(body, ContentType.create(contentType, charset)));
+            entity(new ByteArrayEntity(body, ContentType.create(contentType, charset)), null);
             return this;
         }
 
         @Override
         public Response body(ByteBuffer body, String contentType, Charset charset) {
-            response.setEntity(new ByteBufferEntity(body, ContentType.create(contentType, charset)));
+            entity(new ByteBufferEntity(body, ContentType.create(contentType, charset)), null);
             return this;
         }
+
+        @Override
+        public ResponseWriter writer(String contentType, Charset charset) {
+            ResponseWriter writer = new ResponseWriter(BufferPool.RESPONSE, ContentType.create(contentType, charset));
+            entity(writer.body(), null);
+            return writer;
+        }
+
+        @Override
+        public ResponseStream stream(String contentType) {
+            PushEntity stream = new PushEntity(ContentType.parse(contentType), log);
+            entity(stream, null);
+            return stream;
+        }
+
+        @Override
+        public EventSink eventStream(Duration heartbeatInterval) {
+            PushEntity sink = new PushEntity(TEXT_EVENT_STREAM, log);
+            entity(sink, null);
+            response.setHeader(HttpHeaders.CACHE_CONTROL, "no-cache");
+            if (heartbeatInterval != null) {
+                sink.heartbeat(heartbeatInterval.toNanos());
+            }
+            return sink;
+        }
+    }
+
+    private static final ContentType TEXT_EVENT_STREAM = ContentType.create("text/event-stream", StandardCharsets.UTF_8);
+
+    // a stream replaced by another body, or never sent, must not stay open; a written body gives back its buffers
+    private static void discardEntity(ClassicHttpResponse response) {
+        HttpEntity entity = response.getEntity();
+        if (entity instanceof PushEntity) {
+            ((PushEntity) entity).abort();
+        } else if (entity instanceof ResponseWriter.Body) {
+            ((ResponseWriter.Body) entity).close();
+        }
     }
 
-    private static class ContextWrapper implements Context {
-        private final HttpContext context;
+    private static final JsonGeneratorFactory JSON_GENERATOR_FACTORY = Json.createGeneratorFactory(null);
+    private static final JsonParserFactory JSON_PARSER_FACTORY = Json.createParserFactory(null);
+
+    private static final class JsonGeneratorEntity extends AbstractHttpEntity {
+
+        private final Consumer<JsonGenerator> writer;
+
+        private JsonGeneratorEntity(Consumer<JsonGenerator> writer) {
+            super(ContentType.APPLICATION_JSON, null, true);
+            this.writer = writer;
+        }
+
+        @Override
+        public void writeTo(OutputStream outStream) throws IOException {
+            // the generator close its stream: the underlying one is closed by httpcore once the entity is written
+            try (JsonGenerator generator = JSON_GENERATOR_FACTORY.createGenerator(new FilterOutputStream(outStream) {
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    flush();
+                }
+            })) {
+                writer.accept(generator);
+            }
+        }
+
+        /**
+         * The document is generated by a separate thread into a bounded pipe, so it is not held in memory either.
+         * A generation error is thrown by the read reaching the end of the stream.
+         */
+        @Override
+        public InputStream getContent() throws IOException {
+            PipedInputStream in = new PipedInputStream(8192);
+            PipedOutputStream out = new PipedOutputStream(in);
+            AtomicReference<Throwable> failure = new AtomicReference<>();
+            Thread generator = new Thread(() -> {
+                try {
+                    writeTo(out);
+                } catch (Exception | Error e) {
+                    // set before the pipe is closed: the reader sees it with the end of the stream
+                    failure.set(e);
+                } finally {
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        // the reader closed the pipe
+                    }
+                }
+            }, "ni-http-json");
+            generator.setDaemon(true);
+            generator.start();
+            return new FilterInputStream(in) {
+                @Override
+                public int read() throws IOException {
+                    return checkEnd(super.read());
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return checkEnd(super.read(b, off, len));
+                }
+
+                private int checkEnd(int read) throws IOException {
+                    if (read < 0 && failure.get() != null) {
+                        throw new IOException("Cannot generate the json document", failure.get());
+                    }
+                    return read;
+                }
+            };
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return true;
+        }
 
-        private ContextWrapper(HttpContext context) {
-            this.context = context;
+        @Override
+        public void close() {
         }
     }
 
+    /**
+     * Start the server and block until it's stopped.
+     *
+     * @throws IOException if the server cannot listen on the configured port
+     * @throws InterruptedException if interrupted while waiting
+     */
     public void start() throws IOException, InterruptedException {
-        HttpRequestHandler dispatcher = this::dispatch;
-        HttpProcessor httpProcessor = HttpProcessorBuilder.create()
+        int localPort = listen();
+        Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
+        System.out.println("Listening on port " + localPort);
+        if (classicServers != null) {
+            for (HttpServer server : classicServers) {
+                server.awaitTermination(TimeValue.MAX_VALUE);
+            }
+        } else {
+            asyncServer.awaitShutdown(TimeValue.MAX_VALUE);
+        }
+    }
+
+    /**
+     * Start the server without blocking the calling thread.
+     *
+     * @return the listening port, the selected one if the configured port is 0
+     * @throws IOException if the server cannot listen on the configured port
+     */
+    public synchronized int listen() throws IOException {
+        if (classicServers != null || asyncServer != null) {
+            throw new IllegalStateException("Server already started");
+        }
+        log.start();
+        try {
+            return async ? listenAsync() : listenClassic();
+        } catch (IOException | RuntimeException e) {
+            log.stop();
+            throw e;
+        }
+    }
+
+    /**
+     * Stop the server. The requests being handled are completed.
+     */
+    public synchronized void stop() {
+        if (classicServers != null) {
+            // stop accepting on all the listeners first
+            for (HttpServer server : classicServers) {
+                server.initiateShutdown();
+            }
+            for (HttpServer server : classicServers) {
+                server.close(CloseMode.GRACEFUL);
+            }
+        }
+        if (asyncServer != null) {
+            asyncServer.close(CloseMode.GRACEFUL);
+            workers.shutdown();
+        }
+        log.stop();
+    }
+
+    private static HttpProcessor httpProcessor() {
+        return HttpProcessorBuilder.create()
                 .add(new ResponseDate())
                 .add(new ResponseContent())
                 .add(new ResponseConnControl())
                 .build();
+    }
+
+    // the H2 interceptors behave like the HTTP/1.1 ones on HTTP/1.1 connections
+    private static HttpProcessor h2HttpProcessor() {
+        return HttpProcessorBuilder.create()
+                .add(new ResponseDate())
+                .add(new H2ResponseContent())
+                .add(new H2ResponseConnControl())
+                .build();
+    }
+
+    private void handleException(Exception ex) {
+        //don't log socket related errors, nor the timeouts and the streams interrupted by stop()
+        if (! (ex instanceof ConnectionClosedException || ex instanceof InterruptedIOException || ex instanceof SocketException)) {
+            log.error(null, ex);
+        }
+    }
+
+    private int listenClassic() throws IOException {
+        HttpRequestHandler dispatcher = this::serve;
         SocketConfig socketConfig = SocketConfig.custom()
-                .setSoTimeout(Timeout.ofSeconds(30))
+                .setSoTimeout(idleTimeout)
                 .setSoReuseAddress(true)
                 .setTcpNoDelay(true)
+                .setBacklogSize(backlog)
+                .setSndBufSize(sendBufferSize)
+                .setRcvBufSize(receiveBufferSize)
                 .build();
-        HttpServer server = ServerBootstrap.bootstrap()
-                .setListenerPort(port)
-                .setHttpProcessor(httpProcessor)
-                .setSocketConfig(socketConfig)
-                .setExceptionListener(new ExceptionListener() {
-
-                    private void handle(Exception ex) {
-                        //don't print socket related errors
-                        if (! (ex instanceof ConnectionClosedException || ex instanceof SocketTimeoutException || ex instanceof SocketException)) {
-                            ex.printStackTrace(System.err);
-                        }
-                    }
+        ExceptionListener exceptionListener = new ExceptionListener() {
 
-                    @Override
-                    public void onError(Exception ex) {
-                        handle(ex);
-                    }
+            @Override
+            public void onError(Exception ex) {
+                handleException(ex);
+            }
 
-                    @Override
-                    public void onError(HttpConnection connection, Exception ex) {
-                        handle(ex);
-                    }
-                })
-                .register("*", dispatcher)
-                .create();
+            @Override
+            public void onError(HttpConnection connection, Exception ex) {
+                if (ex instanceof SocketTimeoutException) {
+                    connectionStats.idleTimeout();
+                }
+                handleException(ex);
+            }
+        };
+        List<HttpServer> servers = new ArrayList<>(listeners);
+        int localPort = port;
+        try {
+            for (int i = 0; i < listeners; i++) {
+                // each server has its own listener thread and worker threads
+                HttpServer server = ServerBootstrap.bootstrap()
+                        .setListenerPort(localPort)
+                        .setLocalAddress(address)
+                        .setServerSocketFactory(listeners > 1 ? new ReusePortServerSocketFactory() : null)
+                        .setHttpProcessor(httpProcessor())
+                        .setSocketConfig(socketConfig)
+                        .setConnectionFactory(connectionStats.connectionFactory())
+                        .setExceptionListener(exceptionListener)
+                        .register("*", dispatcher)
+                        .create();
+                servers.add(server);
+                server.start();
+                // with port 0, the other listeners use the selected one
+                localPort = server.getLocalPort();
+            }
+        } catch (IOException e) {
+            servers.forEach(server -> server.close(CloseMode.IMMEDIATE));
+            throw e;
+        }
+        classicServers = servers;
+        return localPort;
+    }
+
+    // SO_REUSEPORT must be set before binding: the default factory create bound server sockets
+    private static final class ReusePortServerSocketFactory extends ServerSocketFactory {
+
+        static boolean isSupported() {
+            try (ServerSocket socket = new ServerSocket()) {
+                return socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            } catch (IOException e) {
+                return false;
+            }
+        }
+
+        @Override
+        public ServerSocket createServerSocket() throws IOException {
+            ServerSocket socket = new ServerSocket();
+            socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            return socket;
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port) throws IOException {
+            return createServerSocket(port, 0, null);
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+            return createServerSocket(port, backlog, null);
+        }
+
+        @Override
+        public ServerSocket createServerSocket(int port, int backlog, InetAddress address) throws IOException {
+            ServerSocket socket = createServerSocket();
+            try {
+                socket.bind(new InetSocketAddress(address, port), backlog);
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+            return socket;
+        }
+    }
+
+    private static ExecutorService newWorkerPool(int workerThreads) {
+        AtomicInteger workerCount = new AtomicInteger();
+        return Executors.newFixedThreadPool(workerThreads, r -> {
+            Thread t = new Thread(r, "ni-http-worker-" + workerCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private int listenAsync() throws IOException {
+        HttpRequestHandler dispatcher = this::serve;
+        ExecutorService workers = virtualThreads ? VirtualThreads.newVirtualThreadPerTaskExecutor() : newWorkerPool(workerThreads);
+        Executor executor = virtualThreads ? VirtualThreads.bounded(workers, maxConcurrentRequests) : workers;
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(ioThreads)
+                .setSoTimeout(idleTimeout)
+                .setSoReuseAddress(true)
+                .setTcpNoDelay(true)
+                .setBacklogSize(backlog)
+                .setSndBufSize(sendBufferSize)
+                .setRcvBufSize(receiveBufferSize)
+                .build();
+        Supplier<AsyncServerExchangeHandler> exchangeHandler = () -> new AsyncExchangeHandler(dispatcher, executor, ASYNC_BUFFER_SIZE, this::handleException);
+        HttpAsyncServer server;
+        if (h2Config != null) {
+            // assembled like H2ServerBootstrap, without its handler registry: it rejects the HTTP/2 requests
+            // with an unknown :authority host name (421 Not authoritative)
+            HttpProcessor processor = h2HttpProcessor();
+            HandlerFactory<AsyncServerExchangeHandler> handlerFactory = (request, context) -> new BasicAsyncServerExpectationDecorator(exchangeHandler.get());
+            server = new HttpAsyncServer(new ServerHttpProtocolNegotiatorFactory(
+                    new ServerHttp1StreamDuplexerFactory(processor, handlerFactory, Http1Config.DEFAULT, CharCodingConfig.DEFAULT, null),
+                    new ServerH2StreamMultiplexerFactory(processor, handlerFactory, h2Config, CharCodingConfig.DEFAULT, null),
+                    HttpVersionPolicy.NEGOTIATE, null, null), ioReactorConfig, null, this::handleException, connectionStats.sessionListener());
+        } else {
+            server = AsyncServerBootstrap.bootstrap()
+                    .setIOReactorConfig(ioReactorConfig)
+                    .setHttpProcessor(httpProcessor())
+                    .setExceptionCallback(this::handleException)
+                    .setIOSessionListener(connectionStats.sessionListener())
+                    .register("*", exchangeHandler)
+                    .create();
+        }
         server.start();
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> server.close(CloseMode.GRACEFUL)));
-        System.out.println("Listening on port " + port);
-        server.awaitTermination(TimeValue.MAX_VALUE);
+        ListenerEndpoint endpoint;
+        try {
+            endpoint = server.listen(new InetSocketAddress(address, port)).get();
+        } catch (ExecutionException e) {
+            server.close(CloseMode.IMMEDIATE);
+            workers.shutdown();
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            server.close(CloseMode.IMMEDIATE);
+            workers.shutdown();
+            throw new InterruptedIOException("Interrupted while waiting for the listener");
+        }
+        asyncServer = server;
+        this.workers = workers;
+        return ((InetSocketAddress) endpoint.getAddress()).getPort();
     }
 }
-
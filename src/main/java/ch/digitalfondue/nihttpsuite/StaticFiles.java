@@ -0,0 +1,389 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import org.apache.hc.core5.http.ContentType;
+import org.apache.hc.core5.http.HttpHeaders;
+import org.apache.hc.core5.http.HttpStatus;
+import org.apache.hc.core5.http.io.entity.AbstractHttpEntity;
+import org.apache.hc.core5.http.io.entity.ByteArrayEntity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Serve the files of a directory, with conditional requests (ETag, Last-Modified), single byte range requests
+ * and an in memory cache for the small files.
+ */
+final class StaticFiles implements RequestHandler {
+
+    static final String PATH_VARIABLE = "path";
+
+    static final long DEFAULT_MAX_CACHED_FILE_SIZE = 64 * 1024;
+    static final long DEFAULT_CACHE_SIZE = 32 * 1024 * 1024;
+
+    private static final Map<String, String> CONTENT_TYPES = new HashMap<>();
+
+    static {
+        CONTENT_TYPES.put("html", "text/html");
+        CONTENT_TYPES.put("htm", "text/html");
+        CONTENT_TYPES.put("css", "text/css");
+        CONTENT_TYPES.put("csv", "text/csv");
+        CONTENT_TYPES.put("txt", "text/plain");
+        CONTENT_TYPES.put("xml", "text/xml");
+        CONTENT_TYPES.put("js", "text/javascript");
+        CONTENT_TYPES.put("mjs", "text/javascript");
+        CONTENT_TYPES.put("json", "application/json");
+        CONTENT_TYPES.put("map", "application/json");
+        CONTENT_TYPES.put("wasm", "application/wasm");
+        CONTENT_TYPES.put("pdf", "application/pdf");
+        CONTENT_TYPES.put("svg", "image/svg+xml");
+        CONTENT_TYPES.put("png", "image/png");
+        CONTENT_TYPES.put("jpg", "image/jpeg");
+        CONTENT_TYPES.put("jpeg", "image/jpeg");
+        CONTENT_TYPES.put("gif", "image/gif");
+        CONTENT_TYPES.put("webp", "image/webp");
+        CONTENT_TYPES.put("ico", "image/x-icon");
+        CONTENT_TYPES.put("woff", "font/woff");
+        CONTENT_TYPES.put("woff2", "font/woff2");
+        CONTENT_TYPES.put("ttf", "font/ttf");
+        CONTENT_TYPES.put("mp4", "video/mp4");
+        CONTENT_TYPES.put("webm", "video/webm");
+    }
+
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.RFC_1123_DATE_TIME.withZone(ZoneOffset.UTC);
+
+    private final Path directory;
+    private final long maxCachedFileSize;
+    private final FileCache cache;
+
+    StaticFiles(Path directory, long maxCachedFileSize, long cacheSize) {
+        this.directory = directory.toAbsolutePath().normalize();
+        this.maxCachedFileSize = maxCachedFileSize;
+        this.cache = new FileCache(cacheSize);
+    }
+
+    @Override
+    public void handle(Request req, Response res) throws Exception {
+        Path file = resolve(req.getPathVariable(PATH_VARIABLE));
+        BasicFileAttributes attributes = file == null ? null : readAttributes(file);
+        if (attributes == null || !attributes.isRegularFile()) {
+            res.notFound().html("404 not found");
+            return;
+        }
+
+        long size = attributes.size();
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        String etag = "\"" + Long.toHexString(lastModified) + "-" + Long.toHexString(size) + "\"";
+        String lastModifiedDate = HTTP_DATE.format(Instant.ofEpochMilli(lastModified));
+
+        res.header(HttpHeaders.ETAG, etag);
+        res.header(HttpHeaders.LAST_MODIFIED, lastModifiedDate);
+        res.header(HttpHeaders.ACCEPT_RANGES, "bytes");
+
+        if (notModified(req, etag, lastModified)) {
+            res.code(HttpStatus.SC_NOT_MODIFIED);
+            return;
+        }
+
+        ContentType contentType = contentType(file);
+        long start = 0;
+        long length = size;
+        Optional<String> range = req.getHeader(HttpHeaders.RANGE);
+        if (range.isPresent() && ifRangeMatch(req, etag, lastModifiedDate)) {
+            long[] parsed = parseRange(range.get(), size);
+            if (parsed == UNSATISFIABLE) {
+                res.code(HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                res.header(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+                return;
+            }
+            if (parsed != null) {
+                start = parsed[0];
+                length = parsed[1] - parsed[0] + 1;
+                res.code(HttpStatus.SC_PARTIAL_CONTENT);
+                res.header(HttpHeaders.CONTENT_RANGE, "bytes " + parsed[0] + "-" + parsed[1] + "/" + size);
+            }
+        }
+        if (length == size) {
+            res.ok();
+        }
+
+        // a partial content must not be compressed, so the file is given only for the full content
+        Path bodyFile = length == size ? file : null;
+        byte[] content = size <= maxCachedFileSize ? cachedContent(file, size, lastModified) : null;
+        if (content != null) {
+            Server.ResponseWrapper.entity(res, new ByteArrayEntity(content, (int) start, (int) length, contentType), bodyFile);
+        } else {
+            Server.ResponseWrapper.entity(res, new FileRegionEntity(file, start, length, contentType), bodyFile);
+        }
+    }
+
+    private byte[] cachedContent(Path file, long size, long lastModified) throws IOException {
+        String key = file.toString();
+        byte[] content = cache.get(key, size, lastModified);
+        if (content == null) {
+            content = Files.readAllBytes(file);
+            // the file has been modified between the attributes read and now: read it from the disk
+            if (content.length != size) {
+                return null;
+            }
+            cache.put(key, size, lastModified, content);
+        }
+        return content;
+    }
+
+    private Path resolve(String relativePath) {
+        if (relativePath == null || relativePath.indexOf('\0') >= 0) {
+            return null;
+        }
+        try {
+            Path file = directory.resolve(relativePath).normalize();
+            return file.startsWith(directory) ? file : null;
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    private static BasicFileAttributes readAttributes(Path file) {
+        try {
+            return Files.readAttributes(file, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static ContentType contentType(Path file) {
+        String name = file.getFileName().toString();
+        int idx = name.lastIndexOf('.');
+        String mimeType = idx < 0 ? null : CONTENT_TYPES.get(name.substring(idx + 1).toLowerCase(Locale.ROOT));
+        if (mimeType == null) {
+            return ContentType.APPLICATION_OCTET_STREAM;
+        }
+        boolean text = mimeType.startsWith("text/") || mimeType.equals("application/json") || mimeType.equals("image/svg+xml");
+        return ContentType.create(mimeType, text ? StandardCharsets.UTF_8 : null);
+    }
+
+    private static boolean notModified(Request req, String etag, long lastModified) {
+        Optional<String> ifNoneMatch = req.getHeader(HttpHeaders.IF_NONE_MATCH);
+        if (ifNoneMatch.isPresent()) {
+            return etagMatch(ifNoneMatch.get(), etag);
+        }
+        Optional<String> ifModifiedSince = req.getHeader(HttpHeaders.IF_MODIFIED_SINCE);
+        if (ifModifiedSince.isPresent()) {
+            long since = parseDate(ifModifiedSince.get());
+            // http dates have a second precision
+            return since >= 0 && lastModified / 1000 <= since / 1000;
+        }
+        return false;
+    }
+
+    /**
+     * Weak comparison of a If-None-Match header value with the current entity tag.
+     *
+     * @param header If-None-Match header value
+     * @param etag   current entity tag
+     * @return true if match
+     */
+    static boolean etagMatch(String header, String etag) {
+        if (header.trim().equals("*")) {
+            return true;
+        }
+        String opaqueTag = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for (String candidate : header.split(",")) {
+            String tag = candidate.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals(opaqueTag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean ifRangeMatch(Request req, String etag, String lastModifiedDate) {
+        Optional<String> ifRange = req.getHeader(HttpHeaders.IF_RANGE);
+        if (ifRange.isEmpty()) {
+            return true;
+        }
+        String value = ifRange.get().trim();
+        // If-Range require a strong comparison
+        return value.startsWith("\"") ? value.equals(etag) : value.equals(lastModifiedDate);
+    }
+
+    private static long parseDate(String value) {
+        try {
+            return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
+    private static final long[] UNSATISFIABLE = new long[0];
+
+    /**
+     * Parse a single byte range. Multiple ranges are not supported: the whole content is sent instead.
+     *
+     * @param header Range header value
+     * @param size   file size
+     * @return [first, last] positions, {@link #UNSATISFIABLE} or null if the header must be ignored
+     */
+    static long[] parseRange(String header, long size) {
+        String value = header.trim();
+        if (!value.startsWith("bytes=") || value.indexOf(',') >= 0) {
+            return null;
+        }
+        int dash = value.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        try {
+            String first = value.substring(6, dash).trim();
+            String last = value.substring(dash + 1).trim();
+            if (first.isEmpty()) {
+                if (last.isEmpty()) {
+                    return null;
+                }
+                // suffix range: the last n bytes
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || size == 0) {
+                    return UNSATISFIABLE;
+                }
+                return new long[]{Math.max(0, size - suffix), size - 1};
+            }
+            long start = Long.parseLong(first);
+            long end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+            if (start >= size) {
+                return UNSATISFIABLE;
+            }
+            return end < start ? null : new long[]{start, end};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A region of a file, written with {@link FileChannel#transferTo(long, long, WritableByteChannel)}.
+     */
+    private static final class FileRegionEntity extends AbstractHttpEntity {
+
+        private final Path file;
+        private final long start;
+        private final long length;
+
+        private FileRegionEntity(Path file, long start, long length, ContentType contentType) {
+            super(contentType, null);
+            this.file = file;
+            this.start = start;
+            this.length = length;
+        }
+
+        @Override
+        public void writeTo(OutputStream outStream) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                WritableByteChannel target = Channels.newChannel(outStream);
+                long position = start;
+                long remaining = length;
+                while (remaining > 0) {
+                    long written = channel.transferTo(position, remaining, target);
+                    if (written <= 0) {
+                        break;
+                    }
+                    position += written;
+                    remaining -= written;
+                }
+            }
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            // streamed: a range of a big file does not fit in an array
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            InputStream in = Channels.newInputStream(channel.position(start));
+            return new InputStream() {
+                private long remaining = length;
+
+                @Override
+                public int read() throws IOException {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    int b = in.read();
+                    if (b >= 0) {
+                        remaining--;
+                    }
+                    return b;
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (remaining <= 0) {
+                        return -1;
+                    }
+                    int read = in.read(b, off, (int) Math.min(len, remaining));
+                    if (read > 0) {
+                        remaining -= read;
+                    }
+                    return read;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    in.close();
+                }
+            };
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        @Override
+        public long getContentLength() {
+            return length;
+        }
+
+        @Override
+        public boolean isStreaming() {
+            return false;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import org.apache.hc.core5.http.message.BasicClassicHttpRequest;
+import org.apache.hc.core5.http.message.BasicClassicHttpResponse;
+import org.apache.hc.core5.http.protocol.BasicHttpContext;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost for the request threads of logging an access or an error record with {@link AccessLog}, compared to
+ * formatting it and writing it to a shared PrintStream (System.err before the access log). Run with several
+ * threads, the PrintStream ones serialize on its lock. The log writer does not keep up with this rate: most of
+ * the {@link AccessLog} records are dropped, the number is printed at the end of each iteration.
+ *
+ * <pre>
+ * mvn -P benchmark verify -Dbenchmark=AccessLogBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Threads(4)
+@Fork(1)
+public class AccessLogBenchmark {
+
+    private AccessLog log;
+    private PrintStream printStream;
+    private final BasicClassicHttpRequest request = new BasicClassicHttpRequest("GET", "/api/items/42?format=json");
+    private final BasicClassicHttpResponse response = new BasicClassicHttpResponse(200);
+    private final HttpContext context = new BasicHttpContext();
+    private final Exception error = new IllegalStateException("failure");
+
+    @Setup
+    public void setup() throws IOException {
+        log = new AccessLog(null, OutputStream.nullOutputStream(), AccessLog.DEFAULT_CAPACITY);
+        log.start();
+        printStream = new PrintStream(OutputStream.nullOutputStream(), true);
+    }
+
+    @TearDown
+    public void tearDown() {
+        log.stop();
+        System.out.println("dropped records: " + log.dropped());
+    }
+
+    @Benchmark
+    public void accessLog() {
+        log.access(request, response, context, 1000);
+    }
+
+    @Benchmark
+    public void accessPrintStream() {
+        printStream.println("{\"time\":\"" + Instant.now() + "\",\"type\":\"access\",\"method\":\"" + request.getMethod()
+                + "\",\"target\":\"" + request.getPath() + "\",\"status\":" + response.getCode() + ",\"duration_us\":1}");
+    }
+
+    @Benchmark
+    public void errorLog() {
+        log.error(request, error);
+    }
+
+    @Benchmark
+    public void errorPrintStackTrace() {
+        error.printStackTrace(printStream);
+    }
+}
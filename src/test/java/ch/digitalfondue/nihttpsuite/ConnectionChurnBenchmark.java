@@ -0,0 +1,172 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Connection churn: each client thread opens a connection, sends one request, reads the response and closes the
+ * connection, in a loop. Measure the number of connections handled by second by the classic server with 1, 2, 4...
+ * SO_REUSEPORT listeners on an ephemeral loopback port.
+ *
+ * The clients close the connections with a reset (SO_LINGER 0), so the loopback ephemeral ports are not exhausted
+ * by the connections in TIME_WAIT.
+ *
+ * Usage: ConnectionChurnBenchmark [--listeners 1,2,4] [--clients 64] [--duration 10] [--warmup 3]
+ */
+public class ConnectionChurnBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        List<Integer> listenerCounts = List.of(1, 2, 4);
+        int clients = 64;
+        int duration = 10;
+        int warmup = 3;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+                case "--listeners":
+                    listenerCounts = new ArrayList<>();
+                    for (String count : value.split(",")) {
+                        listenerCounts.add(Integer.parseInt(count.trim()));
+                    }
+                    break;
+                case "--clients":
+                    clients = Integer.parseInt(value);
+                    break;
+                case "--duration":
+                    duration = Integer.parseInt(value);
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        System.out.printf("clients: %d, duration: %d s, warmup: %d s, processors: %d%n", clients, duration, warmup, Runtime.getRuntime().availableProcessors());
+        System.out.printf("%-10s %12s %10s %10s%n", "listeners", "conn/s", "mean ms", "errors");
+        for (int listeners : listenerCounts) {
+            Server server = Server.configure()
+                    .listenerAddress(InetAddress.getLoopbackAddress())
+                    .listenerPort(0)
+                    .listeners(listeners)
+                    .route()
+                    .get("/", (req, res) -> res.ok().body("ok", "text/plain"))
+                    .build();
+            int port = server.listen();
+            try {
+                run(port, clients, warmup);
+                Result result = run(port, clients, duration);
+                System.out.printf("%-10d %12.0f %10.3f %10d%n", listeners,
+                        result.connections / (double) duration,
+                        result.connections == 0 ? 0 : result.nanos / 1e6 / result.connections,
+                        result.errors);
+            } finally {
+                server.stop();
+            }
+        }
+        System.exit(0);
+    }
+
+    private static Result run(int port, int clients, int durationSeconds) throws InterruptedException {
+        byte[] request = ("GET / HTTP/1.1\r\nHost: 127.0.0.1:" + port + "\r\nUser-Agent: ni-http-churn\r\n\r\n").getBytes(StandardCharsets.US_ASCII);
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(durationSeconds);
+        LongAdder connections = new LongAdder();
+        LongAdder nanos = new LongAdder();
+        LongAdder errors = new LongAdder();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < clients; i++) {
+            threads.add(new Thread(() -> {
+                byte[] buffer = new byte[1024];
+                long now;
+                while ((now = System.nanoTime()) < end) {
+                    try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                        socket.setSoLinger(true, 0);
+                        socket.setTcpNoDelay(true);
+                        OutputStream out = socket.getOutputStream();
+                        out.write(request);
+                        out.flush();
+                        readResponse(socket.getInputStream(), buffer);
+                        connections.increment();
+                        nanos.add(System.nanoTime() - now);
+                    } catch (IOException e) {
+                        errors.increment();
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread t : threads) {
+            t.join();
+        }
+        return new Result(connections.sum(), nanos.sum(), errors.sum());
+    }
+
+    // read the headers and the Content-Length body
+    private static void readResponse(InputStream in, byte[] buffer) throws IOException {
+        int length = 0;
+        int headersEnd = -1;
+        while (headersEnd < 0) {
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read < 0) {
+                throw new IOException("Connection closed before the end of the response");
+            }
+            length += read;
+            for (int i = 3; i < length; i++) {
+                if (buffer[i - 3] == '\r' && buffer[i - 2] == '\n' && buffer[i - 1] == '\r' && buffer[i] == '\n') {
+                    headersEnd = i + 1;
+                    break;
+                }
+            }
+        }
+        String headers = new String(buffer, 0, headersEnd, StandardCharsets.US_ASCII).toLowerCase();
+        int idx = headers.indexOf("content-length:");
+        if (idx < 0) {
+            throw new IOException("Missing Content-Length");
+        }
+        int contentLength = Integer.parseInt(headers.substring(idx + 15, headers.indexOf('\r', idx)).trim());
+        int remaining = headersEnd + contentLength - length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new IOException("Connection closed before the end of the response");
+            }
+            remaining -= read;
+        }
+    }
+
+    private static final class Result {
+        private final long connections;
+        private final long nanos;
+        private final long errors;
+
+        private Result(long connections, long nanos, long errors) {
+            this.connections = connections;
+            this.nanos = nanos;
+            this.errors = errors;
+        }
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import org.apache.hc.core5.http.protocol.BasicHttpContext;
+import org.apache.hc.core5.http.protocol.HttpContext;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of sharing two values (a tenant and a user id) between a wrapper and a handler of a request, with the
+ * array slots of {@link Context} or with the string keyed attributes of the httpcore {@link HttpContext}.
+ *
+ * <pre>
+ * mvn -P benchmark verify -Dbenchmark=ContextBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContextBenchmark {
+
+    private ContextAttributes attributes;
+    private Context.Key<String> tenant;
+    private Context.LongKey userId;
+    // outside of the Long cache, like most ids
+    private long id = 1_000_000;
+
+    @Setup
+    public void setup() {
+        attributes = new ContextAttributes();
+        tenant = attributes.register("tenant", String.class);
+        userId = attributes.registerLong("userId");
+        attributes.register("token", Object.class);
+        attributes.register("body", Object.class);
+        attributes.freeze();
+    }
+
+    @Benchmark
+    public void attributes(Blackhole blackhole) {
+        Context context = attributes.newContext();
+        context.set(tenant, "acme");
+        context.setLong(userId, id);
+        blackhole.consume(context.get(tenant));
+        blackhole.consume(context.getLong(userId));
+    }
+
+    @Benchmark
+    public void httpContext(Blackhole blackhole) {
+        HttpContext context = new BasicHttpContext();
+        context.setAttribute("tenant", "acme");
+        context.setAttribute("userId", id);
+        blackhole.consume(context.getAttribute("tenant"));
+        blackhole.consume((long) (Long) context.getAttribute("userId"));
+    }
+}
@@ -17,12 +17,36 @@ package ch.digitalfondue.nihttpsuite;
 
 
 import javax.json.Json;
+import java.time.Instant;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class Example {
 
     public static void main(String[] args) throws Exception {
-        Server.configure()
-                .listenerPort(8080)
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        routes(Server.configure().listenerPort(port))
+                .build()
+                .start();
+    }
+
+    static Server.RouteBuilder routes(Server.ServerBuilder serverBuilder) {
+        // push the time every second to the /clock subscribers
+        Set<EventSink> clockSubscribers = ConcurrentHashMap.newKeySet();
+        new Timer("clock", true).scheduleAtFixedRate(new TimerTask() {
+            @Override
+            public void run() {
+                String now = Instant.now().toString();
+                clockSubscribers.forEach(sink -> sink.event("time", now).flush());
+            }
+        }, 1000, 1000);
+
+        // set by the filter of /me, read by its handler
+        Context.Key<String> user = serverBuilder.attribute("user", String.class);
+
+        return serverBuilder
                 .route()
                 .get("/", (req, res) -> {
                     res.ok().html("Hello world <a href='/test'>test</a>" + (Json.createObjectBuilder().add("key", "value").build().toString()));
@@ -33,6 +57,36 @@ public class Example {
                 .get("/json-arr", (req, res) -> {
                     res.ok().json(Json.createArrayBuilder().add("key").add("value").build());
                 })
+                .get("/json-stream", (req, res) -> {
+                    res.ok().json(gen -> {
+                        gen.writeStartArray();
+                        for (int i = 0; i < 10; i++) {
+                            gen.writeStartObject().write("idx", i).writeEnd();
+                        }
+                        gen.writeEnd();
+                    });
+                })
+                .prebuilt("/health", PrebuiltResponse.of(200, "{\"status\":\"up\"}", "application/json").header("Cache-Control", "no-store"))
+                .get("/list", (req, res) -> {
+                    ResponseWriter out = res.ok().writer("text/html");
+                    out.append("<ul>");
+                    for (int i = 0; i < 100; i++) {
+                        out.append("<li>item ").append(Integer.toString(i)).append("</li>");
+                    }
+                    out.append("</ul>");
+                })
+                .get("/me", (req, res) -> {
+                    res.ok().body("Hello " + req.context().get(user), "text/plain");
+                })
+                .filter((req, res, next) -> {
+                    String name = req.getQueryParameter("user").orElse(null);
+                    if (name == null) {
+                        res.code(401).body("401 unauthorized", "text/plain");
+                        return;
+                    }
+                    req.context().set(user, name);
+                    next.handle(req, res);
+                })
                 .get("/test", (req, res) -> {
                     res.ok().html("Test <a href='/'>home</a>");
                 })
@@ -42,8 +96,11 @@ public class Example {
                 .get("/test/{abc}/{def}", (req, res) -> {
                     res.ok().body(req.getPathVariable("abc")+"|"+req.getPathVariable("def"), "text/plain");
                 })
-                .build()
-                .start();
+                .get("/clock", (req, res) -> {
+                    EventSink sink = res.ok().eventStream();
+                    clockSubscribers.add(sink);
+                    sink.onClose(() -> clockSubscribers.remove(sink));
+                });
     }
 }
 
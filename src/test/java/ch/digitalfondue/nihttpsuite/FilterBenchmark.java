@@ -0,0 +1,117 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import org.apache.hc.core5.http.message.BasicClassicHttpRequest;
+import org.apache.hc.core5.http.message.BasicClassicHttpResponse;
+import org.apache.hc.core5.http.protocol.BasicHttpContext;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the {@link Filter} chains: the same CORS, authentication, timing and cache header logic done by four
+ * filters (two server wide, two on the route) or inlined by hand in the handler. Both should be close.
+ *
+ * <pre>
+ * mvn -P benchmark verify -Dbenchmark=FilterBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+
+    private Server inlined;
+    private Server filters;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        this.blackhole = blackhole;
+
+        Server.ServerBuilder inlinedBuilder = Server.configure();
+        Context.Key<String> inlinedUser = inlinedBuilder.attribute("user", String.class);
+        inlined = inlinedBuilder.route().get("/api/items/{id}", (req, res) -> {
+            long start = System.nanoTime();
+            res.header("Access-Control-Allow-Origin", "*");
+            String authorization = req.getHeader("Authorization").orElse(null);
+            if (authorization == null) {
+                res.code(401);
+            } else {
+                req.context().set(inlinedUser, authorization);
+                res.header("Cache-Control", "no-store");
+                handle(req, res, inlinedUser);
+            }
+            res.header("Server-Timing", "app;dur=" + (System.nanoTime() - start) / 1000);
+        }).build();
+
+        Server.ServerBuilder filtersBuilder = Server.configure();
+        Context.Key<String> user = filtersBuilder.attribute("user", String.class);
+        filters = filtersBuilder
+                .filter((req, res, next) -> {
+                    long start = System.nanoTime();
+                    next.handle(req, res);
+                    res.header("Server-Timing", "app;dur=" + (System.nanoTime() - start) / 1000);
+                })
+                .filter((req, res, next) -> {
+                    res.header("Access-Control-Allow-Origin", "*");
+                    next.handle(req, res);
+                })
+                .route()
+                .get("/api/items/{id}", (req, res) -> handle(req, res, user))
+                .filter((req, res, next) -> {
+                    String authorization = req.getHeader("Authorization").orElse(null);
+                    if (authorization == null) {
+                        res.code(401);
+                        return;
+                    }
+                    req.context().set(user, authorization);
+                    next.handle(req, res);
+                })
+                .filter((req, res, next) -> {
+                    res.header("Cache-Control", "no-store");
+                    next.handle(req, res);
+                })
+                .build();
+    }
+
+    private static void handle(Request req, Response res, Context.Key<String> user) {
+        res.ok().body(req.context().get(user) + " " + req.getPathVariable("id"), "text/plain");
+    }
+
+    @Benchmark
+    public void inlined() {
+        dispatch(inlined);
+    }
+
+    @Benchmark
+    public void filters() {
+        dispatch(filters);
+    }
+
+    private void dispatch(Server server) {
+        BasicClassicHttpRequest request = new BasicClassicHttpRequest("GET", "/api/items/42");
+        request.setHeader("Authorization", "Bearer token");
+        BasicClassicHttpResponse response = new BasicClassicHttpResponse(200);
+        server.dispatch(request, response, new BasicHttpContext());
+        blackhole.consume(response);
+    }
+}
@@ -0,0 +1,495 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.UnaryOperator;
+
+/**
+ * End to end load test: start a server with the {@link Example} routes on an ephemeral loopback port and drive it
+ * with a built in HTTP/1.1 load generator.
+ *
+ * Closed loop (default): each connection send a new request as soon as a response is received, up to
+ * --pipeline requests in flight. Open loop (--rate): the requests are sent at a constant total rate and the latency
+ * is measured from the time the request should have been sent, so a stalled server is not hidden by a generator
+ * waiting for it (coordinated omission). For the closed loop, the corrected distribution add the requests that
+ * would have been sent during a stall, with the mean interval between requests as expected interval.
+ *
+ * Usage: LoadTest [--mode classic|async|virtual|all] [--scenario html|json|variables|not-found|mix|all]
+ *                 [--connections 32] [--pipeline 1] [--keep-alive true] [--rate 0] [--duration 10] [--warmup 3]
+ */
+public class LoadTest {
+
+    private static final Map<String, String[]> SCENARIOS = new LinkedHashMap<>();
+
+    static {
+        SCENARIOS.put("html", new String[]{"/"});
+        SCENARIOS.put("json", new String[]{"/json"});
+        SCENARIOS.put("variables", new String[]{"/test/abc/def"});
+        SCENARIOS.put("not-found", new String[]{"/missing/page"});
+        SCENARIOS.put("mix", new String[]{"/", "/json", "/test/abc/def", "/json-stream", "/missing/page"});
+    }
+
+    private static final Map<String, UnaryOperator<Server.ServerBuilder>> MODES = new LinkedHashMap<>();
+
+    static {
+        MODES.put("classic", b -> b);
+        MODES.put("async", Server.ServerBuilder::async);
+        MODES.put("virtual", b -> b.virtualThreads(10_000));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options = Options.parse(args);
+        System.out.printf("connections: %d, pipeline: %d, keep-alive: %s, %s, duration: %d s, warmup: %d s%n",
+                options.connections, options.pipeline, options.keepAlive,
+                options.rate > 0 ? "open loop at " + options.rate + " req/s" : "closed loop", options.duration, options.warmup);
+        System.out.printf("%-8s %-10s %10s %9s %9s %9s %9s %9s | %9s %9s %9s | %7s %7s%n",
+                "mode", "scenario", "req/s", "p50 ms", "p90 ms", "p99 ms", "p99.9 ms", "max ms",
+                "cp50 ms", "cp99 ms", "cp99.9 ms", "non-2xx", "errors");
+
+        for (String mode : options.modes) {
+            if ("virtual".equals(mode) && !VirtualThreads.isSupported()) {
+                System.out.printf("%-8s skipped, require java 21 (current: %s)%n", mode, Runtime.version());
+                continue;
+            }
+            for (String scenario : options.scenarios) {
+                Server server = Example.routes(MODES.get(mode).apply(Server.configure()
+                        .listenerAddress(InetAddress.getLoopbackAddress())
+                        .listenerPort(0))).build();
+                int port = server.listen();
+                try {
+                    String[] paths = SCENARIOS.get(scenario);
+                    run(port, paths, options, options.warmup);
+                    Result result = run(port, paths, options, options.duration);
+                    result.print(mode, scenario, options.rate > 0);
+                } finally {
+                    server.stop();
+                }
+            }
+        }
+        System.exit(0);
+    }
+
+    private static Result run(int port, String[] paths, Options options, int durationSeconds) throws InterruptedException {
+        long start = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(50);
+        long end = start + TimeUnit.SECONDS.toNanos(durationSeconds);
+        byte[][] requests = new byte[paths.length][];
+        for (int i = 0; i < paths.length; i++) {
+            requests[i] = ("GET " + paths[i] + " HTTP/1.1\r\n"
+                    + "Host: 127.0.0.1:" + port + "\r\n"
+                    + "User-Agent: ni-http-load-test\r\n"
+                    + (options.keepAlive ? "" : "Connection: close\r\n")
+                    + "\r\n").getBytes(StandardCharsets.US_ASCII);
+        }
+
+        // open loop: each connection send at rate / connections, the connections are staggered
+        long interval = options.rate > 0 ? TimeUnit.SECONDS.toNanos(options.connections) / options.rate : 0;
+        List<Connection> connections = new ArrayList<>();
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < options.connections; i++) {
+            long connectionStart = start + (interval * i) / options.connections;
+            Connection connection = new Connection(port, requests, options.pipeline, connectionStart, end, interval, i);
+            connections.add(connection);
+            threads.add(new Thread(options.keepAlive ? connection::runKeepAlive : connection::runWithoutKeepAlive));
+        }
+        threads.forEach(Thread::start);
+        for (Thread t : threads) {
+            t.join();
+        }
+        return new Result(connections, Math.max(1, Math.min(System.nanoTime(), end) - start), options.connections);
+    }
+
+    private static final class Connection {
+        private final int port;
+        private final byte[][] requests;
+        private final int pipeline;
+        private final long start;
+        private final long end;
+        private final long interval;
+        private final int offset;
+
+        private final Semaphore window;
+        private final AtomicLongArray intendedTimes;
+        private volatile long sent;
+        private volatile boolean closing;
+
+        private long[] latencies = new long[4096];
+        private int count;
+        private long non2xx;
+        // written by the writer and the reader threads
+        private final AtomicLong errors = new AtomicLong();
+
+        private Connection(int port, byte[][] requests, int pipeline, long start, long end, long interval, int offset) {
+            this.port = port;
+            this.requests = requests;
+            this.pipeline = pipeline;
+            this.start = start;
+            this.end = end;
+            this.interval = interval;
+            this.offset = offset;
+            this.window = new Semaphore(pipeline);
+            this.intendedTimes = new AtomicLongArray(pipeline);
+        }
+
+        /**
+         * @param seq request sequence number
+         * @return the time the request should be sent, or -1 if the run is over
+         */
+        private long nextSendTime(long seq) {
+            long now = System.nanoTime();
+            if (interval == 0) {
+                return now < end ? Math.max(now, start) : -1;
+            }
+            long intended = start + seq * interval;
+            if (intended >= end) {
+                return -1;
+            }
+            while (now < intended) {
+                LockSupport.parkNanos(intended - now);
+                now = System.nanoTime();
+            }
+            return intended;
+        }
+
+        private byte[] request(long seq) {
+            return requests[(int) ((seq + offset) % requests.length)];
+        }
+
+        void runKeepAlive() {
+            Thread reader = null;
+            try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                socket.setTcpNoDelay(true);
+                OutputStream out = socket.getOutputStream();
+                reader = new Thread(() -> read(socket));
+                reader.start();
+                long seq = 0;
+                try {
+                    while (true) {
+                        window.acquireUninterruptibly();
+                        long sendTime = nextSendTime(seq);
+                        if (sendTime < 0) {
+                            break;
+                        }
+                        intendedTimes.set((int) (seq % pipeline), sendTime);
+                        sent = seq + 1;
+                        out.write(request(seq));
+                        out.flush();
+                        seq++;
+                    }
+                    // wait for the responses in flight, one permit is already held
+                    window.tryAcquire(pipeline - 1, 10, TimeUnit.SECONDS);
+                } catch (IOException | InterruptedException e) {
+                    errors.incrementAndGet();
+                }
+                closing = true;
+            } catch (IOException e) {
+                errors.incrementAndGet();
+            }
+            // the socket is closed: the reader ends on the closed stream
+            if (reader != null) {
+                try {
+                    reader.join();
+                } catch (InterruptedException e) {
+                    errors.incrementAndGet();
+                }
+            }
+        }
+
+        private void read(Socket socket) {
+            try {
+                InputStream in = new BufferedInputStream(socket.getInputStream(), 64 * 1024);
+                ResponseReader responseReader = new ResponseReader(in);
+                long received = 0;
+                while (true) {
+                    int status = responseReader.read();
+                    long now = System.nanoTime();
+                    if (received >= sent) {
+                        throw new IOException("Unexpected response");
+                    }
+                    record(status, now - intendedTimes.get((int) (received % pipeline)));
+                    received++;
+                    window.release();
+                }
+            } catch (IOException e) {
+                if (!closing) {
+                    errors.incrementAndGet();
+                    // unblock the writer
+                    window.release(pipeline);
+                }
+            }
+        }
+
+        void runWithoutKeepAlive() {
+            long seq = 0;
+            while (true) {
+                long sendTime = nextSendTime(seq);
+                if (sendTime < 0) {
+                    return;
+                }
+                try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                    socket.setTcpNoDelay(true);
+                    OutputStream out = socket.getOutputStream();
+                    out.write(request(seq));
+                    out.flush();
+                    int status = new ResponseReader(new BufferedInputStream(socket.getInputStream(), 16 * 1024)).read();
+                    record(status, System.nanoTime() - sendTime);
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                }
+                seq++;
+            }
+        }
+
+        private void record(int status, long latency) {
+            if (status < 200 || status >= 300) {
+                non2xx++;
+            }
+            if (count == latencies.length) {
+                latencies = Arrays.copyOf(latencies, count * 2);
+            }
+            latencies[count++] = latency;
+        }
+    }
+
+    /**
+     * Minimal HTTP/1.1 response reader: status line, headers, content-length or chunked body.
+     */
+    private static final class ResponseReader {
+        private final InputStream in;
+        private final StringBuilder line = new StringBuilder(128);
+
+        private ResponseReader(InputStream in) {
+            this.in = in;
+        }
+
+        int read() throws IOException {
+            String statusLine = readLine();
+            int status = Integer.parseInt(statusLine.substring(9, 12));
+            long contentLength = -1;
+            boolean chunked = false;
+            for (String header = readLine(); !header.isEmpty(); header = readLine()) {
+                int idx = header.indexOf(':');
+                String name = header.substring(0, idx).trim();
+                String value = header.substring(idx + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")) {
+                    contentLength = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = value.toLowerCase(Locale.ROOT).contains("chunked");
+                }
+            }
+            if (chunked) {
+                for (long size = Long.parseLong(chunkSize(readLine()), 16); size > 0; size = Long.parseLong(chunkSize(readLine()), 16)) {
+                    skip(size);
+                    readLine();
+                }
+                // trailers
+                for (String trailer = readLine(); !trailer.isEmpty(); trailer = readLine()) {
+                    // ignored
+                }
+            } else if (contentLength > 0) {
+                skip(contentLength);
+            }
+            return status;
+        }
+
+        private static String chunkSize(String line) {
+            int idx = line.indexOf(';');
+            return (idx < 0 ? line : line.substring(0, idx)).trim();
+        }
+
+        private void skip(long length) throws IOException {
+            long remaining = length;
+            while (remaining > 0) {
+                long skipped = in.skip(remaining);
+                if (skipped <= 0) {
+                    if (in.read() < 0) {
+                        throw new EOFException();
+                    }
+                    skipped = 1;
+                }
+                remaining -= skipped;
+            }
+        }
+
+        private String readLine() throws IOException {
+            line.setLength(0);
+            while (true) {
+                int c = in.read();
+                if (c < 0) {
+                    throw new EOFException();
+                }
+                if (c == '\n') {
+                    int length = line.length();
+                    if (length > 0 && line.charAt(length - 1) == '\r') {
+                        line.setLength(length - 1);
+                    }
+                    return line.toString();
+                }
+                line.append((char) c);
+            }
+        }
+    }
+
+    private static final class Result {
+        private final long[] latencies;
+        private final long non2xx;
+        private final long errors;
+        private final long elapsedNanos;
+        private final int connections;
+
+        private Result(List<Connection> connections, long elapsedNanos, int connectionCount) {
+            this.latencies = connections.stream().flatMapToLong(c -> Arrays.stream(c.latencies, 0, c.count)).sorted().toArray();
+            this.non2xx = connections.stream().mapToLong(c -> c.non2xx).sum();
+            this.errors = connections.stream().mapToLong(c -> c.errors.get()).sum();
+            this.elapsedNanos = elapsedNanos;
+            this.connections = connectionCount;
+        }
+
+        void print(String mode, String scenario, boolean openLoop) {
+            double throughput = latencies.length / (elapsedNanos / 1e9);
+            // the open loop latencies are already measured from the intended send time
+            long expectedInterval = openLoop || latencies.length == 0 ? Long.MAX_VALUE : (elapsedNanos * connections) / latencies.length;
+            System.out.printf("%-8s %-10s %10.0f %9.3f %9.3f %9.3f %9.3f %9.3f | %9.3f %9.3f %9.3f | %7d %7d%n",
+                    mode, scenario, throughput,
+                    percentile(0.5), percentile(0.9), percentile(0.99), percentile(0.999),
+                    latencies.length == 0 ? Double.NaN : latencies[latencies.length - 1] / 1e6,
+                    corrected(0.5, expectedInterval), corrected(0.99, expectedInterval), corrected(0.999, expectedInterval),
+                    non2xx, errors);
+        }
+
+        private double percentile(double percentile) {
+            if (latencies.length == 0) {
+                return Double.NaN;
+            }
+            int idx = (int) Math.min(latencies.length - 1, Math.ceil(percentile * latencies.length) - 1);
+            return latencies[Math.max(0, idx)] / 1e6;
+        }
+
+        /**
+         * Percentile of the latencies completed, like HdrHistogram recordValueWithExpectedInterval, with the values
+         * v - k * expectedInterval (while greater or equal to the expected interval) of the requests that a steady
+         * client would have sent while waiting for a response of latency v.
+         */
+        private double corrected(double percentile, long expectedInterval) {
+            if (latencies.length == 0) {
+                return Double.NaN;
+            }
+            long total = countAtOrBelow(Long.MAX_VALUE, expectedInterval);
+            long rank = Math.max(1, (long) Math.ceil(percentile * total));
+            long low = 0;
+            long high = latencies[latencies.length - 1];
+            while (low < high) {
+                long mid = low + (high - low) / 2;
+                if (countAtOrBelow(mid, expectedInterval) >= rank) {
+                    high = mid;
+                } else {
+                    low = mid + 1;
+                }
+            }
+            return low / 1e6;
+        }
+
+        private long countAtOrBelow(long x, long expectedInterval) {
+            long count = 0;
+            for (long v : latencies) {
+                long synthetic = Math.max(0, v / expectedInterval - 1);
+                if (v <= x) {
+                    count += 1 + synthetic;
+                } else if (synthetic > 0) {
+                    // v - k * interval <= x for k >= ceil((v - x) / interval), k in [1, synthetic]
+                    long firstK = Math.max(1, (v - x + expectedInterval - 1) / expectedInterval);
+                    count += Math.max(0, synthetic - firstK + 1);
+                }
+            }
+            return count;
+        }
+    }
+
+    private static final class Options {
+        private List<String> modes = List.of("classic");
+        private List<String> scenarios = new ArrayList<>(SCENARIOS.keySet());
+        private int connections = 32;
+        private int pipeline = 1;
+        private boolean keepAlive = true;
+        private long rate;
+        private int duration = 10;
+        private int warmup = 3;
+
+        static Options parse(String[] args) {
+            Options options = new Options();
+            for (int i = 0; i + 1 < args.length; i += 2) {
+                String value = args[i + 1];
+                switch (args[i]) {
+                    case "--mode":
+                        options.modes = "all".equals(value) ? new ArrayList<>(MODES.keySet()) : List.of(checked(value, MODES.keySet().contains(value)));
+                        break;
+                    case "--scenario":
+                        options.scenarios = "all".equals(value) ? new ArrayList<>(SCENARIOS.keySet()) : List.of(checked(value, SCENARIOS.containsKey(value)));
+                        break;
+                    case "--connections":
+                        options.connections = Integer.parseInt(value);
+                        break;
+                    case "--pipeline":
+                        options.pipeline = Integer.parseInt(value);
+                        break;
+                    case "--keep-alive":
+                        options.keepAlive = Boolean.parseBoolean(value);
+                        break;
+                    case "--rate":
+                        options.rate = Long.parseLong(value);
+                        break;
+                    case "--duration":
+                        options.duration = Integer.parseInt(value);
+                        break;
+                    case "--warmup":
+                        options.warmup = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+            if (!options.keepAlive && options.pipeline > 1) {
+                throw new IllegalArgumentException("Pipelining require keep-alive");
+            }
+            return options;
+        }
+
+        private static String checked(String value, boolean valid) {
+            if (!valid) {
+                throw new IllegalArgumentException("Unknown value " + value);
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import org.apache.hc.core5.http.message.BasicClassicHttpRequest;
+import org.apache.hc.core5.http.message.BasicClassicHttpResponse;
+import org.apache.hc.core5.http.protocol.BasicHttpContext;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link Server#dispatch} and of writing the body for a health check route, with a handler or with a
+ * {@link PrebuiltResponse}, and for the built-in 404 response.
+ *
+ * <pre>
+ * mvn -P benchmark verify -Dbenchmark=PrebuiltResponseBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PrebuiltResponseBenchmark {
+
+    private Server server;
+    private Blackhole blackhole;
+    private final OutputStream out = OutputStream.nullOutputStream();
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        server = Server.configure().route()
+                .get("/handler", (req, res) -> res.ok().header("Cache-Control", "no-store").body("{\"status\":\"up\"}", "application/json"))
+                .prebuilt("/prebuilt", PrebuiltResponse.of(200, "{\"status\":\"up\"}", "application/json").header("Cache-Control", "no-store"))
+                .build();
+    }
+
+    @Benchmark
+    public void handler() throws IOException {
+        dispatch("/handler");
+    }
+
+    @Benchmark
+    public void prebuilt() throws IOException {
+        dispatch("/prebuilt");
+    }
+
+    @Benchmark
+    public void notFound() throws IOException {
+        dispatch("/missing");
+    }
+
+    private void dispatch(String path) throws IOException {
+        BasicClassicHttpResponse response = new BasicClassicHttpResponse(200);
+        server.dispatch(new BasicClassicHttpRequest("GET", path), response, new BasicHttpContext());
+        response.getEntity().writeTo(out);
+        blackhole.consume(response);
+    }
+}
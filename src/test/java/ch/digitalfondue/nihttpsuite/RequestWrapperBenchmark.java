@@ -0,0 +1,110 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import org.apache.hc.core5.http.ClassicHttpRequest;
+import org.apache.hc.core5.http.message.BasicClassicHttpRequest;
+import org.apache.hc.core5.http.message.BasicClassicHttpResponse;
+import org.apache.hc.core5.http.protocol.BasicHttpContext;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per request cost and allocation of the request wrapping, the gc profiler report the bytes per request:
+ *
+ * <pre>
+ * mvn -P benchmark verify -Dbenchmark=RequestWrapperBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestWrapperBenchmark {
+
+    private Server server;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        server = Server.configure()
+                .route()
+                .get("/ignore-all/{id}", (req, res) -> blackhole.consume(req))
+                .get("/query/{id}", (req, res) -> blackhole.consume(req.getQueryParameter("page")))
+                .get("/all-query/{id}", (req, res) -> {
+                    blackhole.consume(req.getQueryParameter("page"));
+                    blackhole.consume(req.getQueryParameters("sort"));
+                    blackhole.consume(req.getQueryParameter("q"));
+                })
+                .get("/header/{id}", (req, res) -> blackhole.consume(req.getHeader("Accept")))
+                .build();
+    }
+
+    private static ClassicHttpRequest request(String path) {
+        ClassicHttpRequest request = new BasicClassicHttpRequest("GET", path);
+        request.addHeader("Host", "localhost");
+        request.addHeader("Accept", "application/json");
+        request.addHeader("User-Agent", "benchmark");
+        return request;
+    }
+
+    @Benchmark
+    public void handlerIgnoringRequest() {
+        dispatch("/ignore-all/42?page=1&size=20&sort=name");
+    }
+
+    @Benchmark
+    public void handlerReadingQueryParameter() {
+        dispatch("/query/42?page=1&size=20&sort=name");
+    }
+
+    /**
+     * The query shapes only matter for the full query parsing, the other benchmarks run once with a fixed query.
+     */
+    @State(Scope.Thread)
+    public static class Query {
+        @Param({"", "page=1", "page=1&size=20&sort=name&filter=active&lang=en", "q=caf%C3%A9+cr%C3%A8me&page=1"})
+        private String query;
+
+        private String path;
+
+        @Setup
+        public void setup() {
+            path = query.isEmpty() ? "/all-query/42" : "/all-query/42?" + query;
+        }
+    }
+
+    @Benchmark
+    public void handlerReadingAllQueryParameters(Query query) {
+        dispatch(query.path);
+    }
+
+    @Benchmark
+    public void handlerReadingHeader() {
+        dispatch("/header/42?page=1&size=20&sort=name");
+    }
+
+    private void dispatch(String path) {
+        BasicClassicHttpResponse response = new BasicClassicHttpResponse(200);
+        server.dispatch(request(path), response, new BasicHttpContext());
+        blackhole.consume(response);
+    }
+}
@@ -0,0 +1,62 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import org.apache.hc.core5.http.ClassicHttpResponse;
+import org.apache.hc.core5.http.io.entity.EntityUtils;
+import org.apache.hc.core5.http.message.BasicClassicHttpRequest;
+import org.apache.hc.core5.http.message.BasicClassicHttpResponse;
+import org.apache.hc.core5.http.protocol.BasicHttpContext;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ResponseCacheTest {
+
+    @Test
+    public void separatorsInValuesDoNotShareAnEntry() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        Server server = Server.configure()
+                .route()
+                .get("/p", (req, res) -> {
+                    calls.incrementAndGet();
+                    res.ok().body(String.join("|", req.getQueryParameters("a")), "text/plain");
+                })
+                .cache(Duration.ofMinutes(1), ResponseCache.DEFAULT_MAX_SIZE, List.of("a"), List.of())
+                .build();
+
+        Assert.assertEquals("x|y", get(server, "/p?a=x&a=y"));
+        Assert.assertEquals("x\u0001y", get(server, "/p?a=x%01y"));
+        Assert.assertEquals("x\u0000y", get(server, "/p?a=x%00y"));
+        Assert.assertEquals("null", get(server, "/p?a"));
+        Assert.assertEquals("", get(server, "/p?a="));
+        Assert.assertEquals(5, calls.get());
+
+        Assert.assertEquals("x|y", get(server, "/p?a=x&a=y"));
+        Assert.assertEquals(5, calls.get());
+    }
+
+    private static String get(Server server, String path) throws Exception {
+        BasicClassicHttpRequest request = new BasicClassicHttpRequest("GET", path);
+        request.addHeader("Host", "localhost");
+        ClassicHttpResponse response = new BasicClassicHttpResponse(200);
+        server.dispatch(request, response, new BasicHttpContext());
+        return EntityUtils.toString(response.getEntity());
+    }
+}
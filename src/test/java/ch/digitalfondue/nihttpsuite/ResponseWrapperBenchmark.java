@@ -0,0 +1,119 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import org.apache.hc.core5.http.message.BasicClassicHttpResponse;
+import org.openjdk.jmh.annotations.*;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonValue;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of setting a response body and writing it, for string, json value and streamed json bodies of growing size,
+ * and for a body built from small fragments with a StringBuilder or with the pooled {@link ResponseWriter}.
+ *
+ * <pre>
+ * mvn -P benchmark verify -Dbenchmark=ResponseWrapperBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseWrapperBenchmark {
+
+    // number of {"id":..., "name":...} objects in the payload
+    @Param({"1", "100", "10000"})
+    private int items;
+
+    private String text;
+    private JsonValue jsonValue;
+    private final OutputStream out = OutputStream.nullOutputStream();
+
+    @Setup
+    public void setup() {
+        JsonArrayBuilder array = Json.createArrayBuilder();
+        for (int i = 0; i < items; i++) {
+            array.add(Json.createObjectBuilder().add("id", i).add("name", "item " + i));
+        }
+        jsonValue = array.build();
+        text = jsonValue.toString();
+    }
+
+    @Benchmark
+    public void bodyString() throws IOException {
+        BasicClassicHttpResponse response = new BasicClassicHttpResponse(200);
+        new Server.ResponseWrapper(response).ok().body(text, "text/plain");
+        response.getEntity().writeTo(out);
+    }
+
+    @Benchmark
+    public void writer() throws IOException {
+        BasicClassicHttpResponse response = new BasicClassicHttpResponse(200);
+        new Server.ResponseWrapper(response).ok().writer("text/plain").append(text);
+        response.getEntity().writeTo(out);
+    }
+
+    @Benchmark
+    public void fragmentsStringBuilder() throws IOException {
+        BasicClassicHttpResponse response = new BasicClassicHttpResponse(200);
+        StringBuilder sb = new StringBuilder("<ul>");
+        for (int i = 0; i < items; i++) {
+            sb.append("<li>item ").append(i).append("</li>");
+        }
+        new Server.ResponseWrapper(response).ok().html(sb.append("</ul>").toString());
+        response.getEntity().writeTo(out);
+    }
+
+    @Benchmark
+    public void fragmentsWriter() throws IOException {
+        BasicClassicHttpResponse response = new BasicClassicHttpResponse(200);
+        ResponseWriter writer = new Server.ResponseWrapper(response).ok().writer("text/html");
+        writer.append("<ul>");
+        for (int i = 0; i < items; i++) {
+            writer.append("<li>item ").append(Integer.toString(i)).append("</li>");
+        }
+        writer.append("</ul>");
+        response.getEntity().writeTo(out);
+    }
+
+    @Benchmark
+    public void jsonValue() throws IOException {
+        BasicClassicHttpResponse response = new BasicClassicHttpResponse(200);
+        new Server.ResponseWrapper(response).ok().json(jsonValue);
+        response.getEntity().writeTo(out);
+    }
+
+    @Benchmark
+    public void jsonGenerator() throws IOException {
+        BasicClassicHttpResponse response = new BasicClassicHttpResponse(200);
+        int count = items;
+        new Server.ResponseWrapper(response).ok().json(gen -> {
+            gen.writeStartArray();
+            for (int i = 0; i < count; i++) {
+                gen.writeStartObject().write("id", i).write("name", "item " + i).writeEnd();
+            }
+            gen.writeEnd();
+        });
+        response.getEntity().writeTo(out);
+    }
+}
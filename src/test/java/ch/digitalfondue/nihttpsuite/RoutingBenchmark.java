@@ -0,0 +1,89 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import org.apache.hc.core5.http.message.BasicClassicHttpRequest;
+import org.apache.hc.core5.http.message.BasicClassicHttpResponse;
+import org.apache.hc.core5.http.protocol.BasicHttpContext;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link Server#dispatch} with route tables of increasing size, with only static routes or with
+ * routes having path variables. The dispatch time should stay flat when the number of routes grows.
+ *
+ * <pre>
+ * mvn -P benchmark verify -Dbenchmark=RoutingBenchmark
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+
+    @Param({"10", "100", "1000"})
+    private int routes;
+
+    @Param({"static", "variable"})
+    private String kind;
+
+    private Server server;
+    private String firstPath;
+    private String lastPath;
+    private Blackhole blackhole;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        this.blackhole = blackhole;
+        boolean variable = "variable".equals(kind);
+        Server.RouteBuilder builder = Server.configure().route();
+        for (int i = 0; i < routes; i++) {
+            String path = variable ? "/api/resource" + i + "/{id}/items/{item}" : "/api/resource" + i + "/items";
+            builder.get(path, (req, res) -> blackhole.consume(req));
+            // same prefix, other methods: the tree must not degrade with them
+            builder.post(path, (req, res) -> blackhole.consume(req));
+        }
+        server = builder.build();
+        firstPath = variable ? "/api/resource0/42/items/7" : "/api/resource0/items";
+        lastPath = variable ? "/api/resource" + (routes - 1) + "/42/items/7" : "/api/resource" + (routes - 1) + "/items";
+    }
+
+    @Benchmark
+    public void firstRoute() {
+        dispatch(firstPath);
+    }
+
+    @Benchmark
+    public void lastRoute() {
+        dispatch(lastPath);
+    }
+
+    @Benchmark
+    public void notFound() {
+        dispatch("/api/unknown/42/items");
+    }
+
+    private void dispatch(String path) {
+        BasicClassicHttpResponse response = new BasicClassicHttpResponse(200);
+        server.dispatch(new BasicClassicHttpRequest("GET", path), response, new BasicHttpContext());
+        blackhole.consume(response);
+    }
+}
@@ -0,0 +1,200 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Startup benchmark: launch the {@link Example} server in a new process and measure the time until the first
+ * successful response, and the resident set size of the process at that point (Linux only).
+ *
+ * By default the server is launched with the same JVM and class path as the benchmark. --cds compares it with a run
+ * using the given AppCDS archive (see the appcds maven profile, the class path must be the one used to create the
+ * archive); --command launches another executable instead, like a native image, with the port as last argument.
+ *
+ * --train starts the server in process, sends a few requests and exits: used to create the AppCDS archive.
+ *
+ * Usage: StartupBenchmark [--runs 10] [--jvm-args "-Xmx64m"] [--cds target/ni-http-suite.jsa] [--command ./app]
+ *        StartupBenchmark --train
+ */
+public class StartupBenchmark {
+
+    private static final String[] TRAINING_PATHS = {"/", "/json", "/json-arr", "/json-stream", "/test/abc/def", "/missing/page"};
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    public static void main(String[] args) throws Exception {
+        int runs = 10;
+        List<String> jvmArgs = new ArrayList<>();
+        String cds = null;
+        List<String> command = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--train":
+                    train();
+                    return;
+                case "--runs":
+                    runs = Integer.parseInt(args[++i]);
+                    break;
+                case "--jvm-args":
+                    jvmArgs.addAll(Arrays.asList(args[++i].trim().split("\\s+")));
+                    break;
+                case "--cds":
+                    cds = args[++i];
+                    break;
+                case "--command":
+                    command = Arrays.asList(args[++i].trim().split("\\s+"));
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        System.out.printf("runs: %d%n", runs);
+        System.out.printf("%-10s %12s %12s %12s %12s%n", "config", "min ms", "median ms", "max ms", "rss MB");
+        if (command != null) {
+            report("command", command, runs);
+            return;
+        }
+        report("jvm", javaCommand(jvmArgs, null), runs);
+        if (cds != null) {
+            if (!Files.isRegularFile(Path.of(cds))) {
+                throw new IllegalArgumentException("Missing AppCDS archive " + cds);
+            }
+            report("appcds", javaCommand(jvmArgs, cds), runs);
+        }
+    }
+
+    private static List<String> javaCommand(List<String> jvmArgs, String cds) {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmArgs);
+        if (cds != null) {
+            // fail instead of silently starting without the archive when it does not match the class path
+            command.add("-Xshare:on");
+            command.add("-XX:SharedArchiveFile=" + cds);
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Example.class.getName());
+        return command;
+    }
+
+    private static void report(String name, List<String> command, int runs) throws Exception {
+        long[] nanos = new long[runs];
+        long[] rss = new long[runs];
+        for (int i = 0; i < runs; i++) {
+            long[] result = launch(command);
+            nanos[i] = result[0];
+            rss[i] = result[1];
+        }
+        Arrays.sort(nanos);
+        Arrays.sort(rss);
+        System.out.printf("%-10s %12.1f %12.1f %12.1f %12s%n", name, nanos[0] / 1e6, nanos[runs / 2] / 1e6, nanos[runs - 1] / 1e6,
+                rss[runs / 2] < 0 ? "n/a" : String.format("%.1f", rss[runs / 2] / 1024.0 / 1024.0));
+    }
+
+    // time to the first response in nanoseconds and resident set size in bytes, -1 if unknown
+    private static long[] launch(List<String> command) throws Exception {
+        int port = freePort();
+        List<String> withPort = new ArrayList<>(command);
+        withPort.add(Integer.toString(port));
+        long start = System.nanoTime();
+        Process process = new ProcessBuilder(withPort)
+                .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                .redirectError(ProcessBuilder.Redirect.INHERIT)
+                .start();
+        try {
+            while (get(port, "/") != 200) {
+                if (!process.isAlive()) {
+                    throw new IllegalStateException("The server exited with " + process.exitValue());
+                }
+                if (System.nanoTime() - start > TIMEOUT_NANOS) {
+                    throw new IllegalStateException("No response after 30 seconds");
+                }
+                Thread.sleep(1);
+            }
+            long elapsed = System.nanoTime() - start;
+            return new long[]{elapsed, rss(process.pid())};
+        } finally {
+            process.destroy();
+            if (!process.waitFor(10, TimeUnit.SECONDS)) {
+                process.destroyForcibly().waitFor();
+            }
+        }
+    }
+
+    private static void train() throws Exception {
+        Server server = Example.routes(Server.configure().listenerAddress(InetAddress.getLoopbackAddress()).listenerPort(0)).build();
+        int port = server.listen();
+        try {
+            for (int i = 0; i < 10; i++) {
+                for (String path : TRAINING_PATHS) {
+                    get(port, path);
+                }
+            }
+        } finally {
+            server.stop();
+        }
+        System.exit(0);
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            return socket.getLocalPort();
+        }
+    }
+
+    // status code of the response, -1 if the connection failed
+    private static int get(int port, String path) {
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            OutputStream out = socket.getOutputStream();
+            out.write(("GET " + path + " HTTP/1.1\r\nHost: 127.0.0.1:" + port + "\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            byte[] response = socket.getInputStream().readAllBytes();
+            String statusLine = new String(response, 0, Math.min(response.length, 12), StandardCharsets.US_ASCII);
+            return statusLine.startsWith("HTTP/1.1 ") && statusLine.length() == 12 ? Integer.parseInt(statusLine.substring(9)) : -1;
+        } catch (IOException e) {
+            return -1;
+        }
+    }
+
+    private static long rss(long pid) {
+        Path status = Path.of("/proc", Long.toString(pid), "status");
+        try {
+            for (String line : Files.readAllLines(status)) {
+                if (line.startsWith("VmRSS:")) {
+                    // "VmRSS:    123456 kB"
+                    String value = line.substring(6).trim();
+                    return Long.parseLong(value.substring(0, value.indexOf(' '))) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // not on Linux
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright © 2020 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.nihttpsuite;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.UnaryOperator;
+
+/**
+ * Compare the classic server, the async server with a platform worker pool and the virtual threads mode
+ * with an I/O bound handler (it sleep to simulate a JDBC call).
+ *
+ * Usage: VirtualThreadsBenchmark [clients] [handlerLatencyMs] [durationSeconds]
+ */
+public class VirtualThreadsBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 400;
+        int handlerLatencyMs = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        int durationSeconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        System.out.printf("clients: %d, handler latency: %d ms, duration: %d s%n", clients, handlerLatencyMs, durationSeconds);
+        System.out.printf("%-32s %12s %10s %10s %8s%n", "mode", "req/s", "p50 ms", "p99 ms", "errors");
+
+        run("classic", b -> b, clients, handlerLatencyMs, durationSeconds);
+        run("async, 64 platform workers", b -> b.async().workerThreads(64), clients, handlerLatencyMs, durationSeconds);
+        if (VirtualThreads.isSupported()) {
+            run("virtual threads, max 10000", b -> b.virtualThreads(10_000), clients, handlerLatencyMs, durationSeconds);
+        } else {
+            System.out.printf("%-32s skipped, require java 21 (current: %s)%n", "virtual threads", Runtime.version());
+        }
+        System.exit(0);
+    }
+
+    private static void run(String name, UnaryOperator<Server.ServerBuilder> mode, int clients, int handlerLatencyMs, int durationSeconds) throws Exception {
+        Server server = mode.apply(Server.configure().listenerPort(0))
+                .route()
+                .get("/io", (req, res) -> {
+                    Thread.sleep(handlerLatencyMs);
+                    res.ok().body("done", "text/plain");
+                })
+                .build();
+        // each mode runs alone: the previous server and its workers are stopped
+        int port = server.listen();
+        try {
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            HttpRequest request = HttpRequest.newBuilder(URI.create("http://localhost:" + port + "/io")).timeout(Duration.ofSeconds(30)).build();
+
+            // warmup
+            runClients(client, request, clients, System.nanoTime() + Duration.ofSeconds(2).toNanos(), new LongAdder());
+
+            LongAdder errors = new LongAdder();
+            long start = System.nanoTime();
+            long[] latencies = runClients(client, request, clients, start + Duration.ofSeconds(durationSeconds).toNanos(), errors);
+            double elapsedSeconds = (System.nanoTime() - start) / 1e9;
+            Arrays.sort(latencies);
+            System.out.printf("%-32s %12.0f %10.2f %10.2f %8d%n", name, latencies.length / elapsedSeconds, percentile(latencies, 0.5), percentile(latencies, 0.99), errors.sum());
+        } finally {
+            server.stop();
+        }
+    }
+
+    private static long[] runClients(HttpClient client, HttpRequest request, int clients, long endNanos, LongAdder errors) throws InterruptedException {
+        List<Thread> threads = new ArrayList<>();
+        long[][] results = new long[clients][];
+        for (int i = 0; i < clients; i++) {
+            int idx = i;
+            Thread t = new Thread(() -> {
+                long[] latencies = new long[1024];
+                int count = 0;
+                while (System.nanoTime() < endNanos) {
+                    long begin = System.nanoTime();
+                    try {
+                        if (client.send(request, HttpResponse.BodyHandlers.discarding()).statusCode() != 200) {
+                            errors.increment();
+                            continue;
+                        }
+                    } catch (IOException e) {
+                        errors.increment();
+                        continue;
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    if (count == latencies.length) {
+                        latencies = Arrays.copyOf(latencies, count * 2);
+                    }
+                    latencies[count++] = System.nanoTime() - begin;
+                }
+                results[idx] = Arrays.copyOf(latencies, count);
+            });
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        return Arrays.stream(results).flatMapToLong(Arrays::stream).toArray();
+    }
+
+    private static double percentile(long[] sortedLatencies, double percentile) {
+        if (sortedLatencies.length == 0) {
+            return Double.NaN;
+        }
+        int idx = (int) Math.min(sortedLatencies.length - 1, Math.ceil(percentile * sortedLatencies.length) - 1);
+        return sortedLatencies[Math.max(0, idx)] / 1e6;
+    }
+}